@@ -0,0 +1,146 @@
+package org.example;
+
+import java.awt.Component;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Stream;
+
+/**
+ * Stack traces of {@code Container.addImpl} calls, kept for each added component.
+ *
+ * A trace is stored as an {@code int[]} of frame ids into a frame table shared by all
+ * components, so the frames of a screen built from the same code are held once.
+ * Capture is shaped by the agent options:
+ * <ul>
+ *   <li>{@code addImpl.traces=false} turns capture off,</li>
+ *   <li>{@code addImpl.depth} limits the frames kept (default all),</li>
+ *   <li>{@code addImpl.sampleEvery} keeps the trace of one in N components,</li>
+ *   <li>{@code addImpl.classes} limits capture to components of the given classes or
+ *   their subclasses, exact names or prefixes ending with {@code *}.</li>
+ * </ul>
+ */
+class AddImplTraces {
+
+    static boolean enabled = true;
+    // 0 keeps the whole trace
+    static int depth = 0;
+    static int sampleEvery = 1;
+    private static String[] classPatterns = new String[0];
+
+    private static final ClassValue<Boolean> classEnabled = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for(Class<?> c = type; c != null; c = c.getSuperclass()) {
+                if(matches(c.getName())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    };
+
+    private static final WeakIdentityMap<Component, int[]> traces = new WeakIdentityMap<>();
+
+    // interned frames, ids index the frames array
+    private static final ConcurrentHashMap<StackTraceElement, Integer> frameIds = new ConcurrentHashMap<>();
+    private static volatile StackTraceElement[] frames = new StackTraceElement[256];
+    private static int frameCount;
+
+    static void configure(AgentOptions options) {
+        enabled = options.getBoolean("addImpl.traces", enabled);
+        depth = Math.max(0, options.getInt("addImpl.depth", depth));
+        sampleEvery = Math.max(1, options.getInt("addImpl.sampleEvery", sampleEvery));
+        List<String> patterns = options.getAll("addImpl.classes");
+        classPatterns = patterns.toArray(new String[0]);
+    }
+
+    static void record(Component component) {
+        if(!enabled || component == null) {
+            return;
+        }
+        if(classPatterns.length > 0 && !classEnabled.get(component.getClass())) {
+            return;
+        }
+        if(sampleEvery > 1 && ThreadLocalRandom.current().nextInt(sampleEvery) != 0) {
+            return;
+        }
+        traces.put(component, StackCapture.walker.walk(AddImplTraces::encode));
+    }
+
+    // frame ids from Container.addImpl down, without the agent frames on top
+    private static int[] encode(Stream<StackWalker.StackFrame> stream) {
+        int limit = depth > 0 ? depth : Integer.MAX_VALUE;
+        int[] ids = new int[Math.min(limit, 64)];
+        int count = 0;
+        Iterator<StackWalker.StackFrame> it = stream.iterator();
+        while(it.hasNext() && count < limit) {
+            StackWalker.StackFrame frame = it.next();
+            if(count == 0 && StackCapture.isAgentClass(frame.getDeclaringClass())) {
+                continue;
+            }
+            if(count == ids.length) {
+                ids = Arrays.copyOf(ids, Math.min(limit, count * 2));
+            }
+            ids[count++] = idOf(frame.toStackTraceElement());
+        }
+        return count == ids.length ? ids : Arrays.copyOf(ids, count);
+    }
+
+    private static int idOf(StackTraceElement frame) {
+        Integer id = frameIds.get(frame);
+        if(id != null) {
+            return id;
+        }
+        synchronized(frameIds) {
+            id = frameIds.get(frame);
+            if(id == null) {
+                StackTraceElement[] table = frames;
+                if(frameCount == table.length) {
+                    table = Arrays.copyOf(table, frameCount * 2);
+                }
+                table[frameCount] = frame;
+                id = frameCount++;
+                // the volatile write makes the frame visible before its id is published
+                frames = table;
+                frameIds.put(frame, id);
+            }
+            return id;
+        }
+    }
+
+    /** @return the decoded trace or null if none was captured for the component */
+    static StackTraceElement[] get(Component component) {
+        int[] ids = traces.get(component);
+        if(ids == null) {
+            return null;
+        }
+        StackTraceElement[] table = frames;
+        StackTraceElement[] trace = new StackTraceElement[ids.length];
+        for(int i = 0; i < ids.length; i++) {
+            trace[i] = table[ids[i]];
+        }
+        return trace;
+    }
+
+    static int size() {
+        return traces.size();
+    }
+
+    static int frameCount() {
+        return frameIds.size();
+    }
+
+    private static boolean matches(String className) {
+        for(String pattern : classPatterns) {
+            if(pattern.endsWith("*")
+                    ? className.startsWith(pattern.substring(0, pattern.length() - 1))
+                    : className.equals(pattern)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
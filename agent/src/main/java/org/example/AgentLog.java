@@ -0,0 +1,361 @@
+package org.example;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging of the agent itself, kept off the logging frameworks the application may use
+ * and the agent may instrument.
+ *
+ * Records go into a preallocated ring and are formatted and written by a daemon
+ * thread, so class loading never waits for console or file I/O. A record whose level
+ * is disabled for its category costs one field check; when the ring is full records
+ * are dropped and counted. Arguments are formatted later on the writer thread, so
+ * only immutable values should be passed.
+ *
+ * Agent options: {@code log.level} for all categories, {@code log.<category>} for one,
+ * e.g. {@code log.transform=debug}; levels are {@code off}, {@code error}, {@code warn},
+ * {@code info} and {@code debug}. {@code log.file} writes to a file instead of the
+ * console, rotated at {@code log.maxSize} (default 10m) keeping {@code log.files}
+ * (default 3) old files.
+ */
+public class AgentLog {
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+
+    private static final String[] LEVEL_NAMES = {"OFF", "ERROR", "WARN", "INFO", "DEBUG"};
+
+    public enum Category {
+        AGENT, TRANSFORM, CACHE, HOOKS, DISPATCH;
+
+        volatile int level = INFO;
+
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+
+    private static final int CAPACITY = 1024;
+    private static final Slot[] slots = new Slot[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    // read and written by the writer thread only
+    private static long head;
+
+    private static final LongAdder dropped = new LongAdder();
+
+    private static volatile Thread writerThread;
+    private static volatile boolean waiting;
+    private static volatile long written;
+
+    private static Writer out = new OutputStreamWriter(System.out, StandardCharsets.UTF_8);
+    private static Path file;
+    private static long fileSize;
+    private static long maxSize = 10L << 20;
+    private static int files = 3;
+
+    static {
+        for(int i = 0; i < CAPACITY; i++) {
+            slots[i] = new Slot(i);
+        }
+    }
+
+    public static void configure(AgentOptions options) throws IOException {
+        int level = parseLevel(options.get("log.level", "info"));
+        for(Category category : Category.values()) {
+            category.level = parseLevel(options.get("log." + category.label, LEVEL_NAMES[level]));
+        }
+        maxSize = options.getSize("log.maxSize", maxSize);
+        files = Math.max(1, options.getInt("log.files", files));
+        String location = options.get("log.file", null);
+        if(location != null) {
+            synchronized(AgentLog.class) {
+                file = Paths.get(location).toAbsolutePath();
+                if(file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                openFile();
+            }
+        }
+    }
+
+    private static int parseLevel(String name) {
+        for(int i = 0; i < LEVEL_NAMES.length; i++) {
+            if(LEVEL_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level: " + name);
+    }
+
+    public static boolean isEnabled(Category category, int level) {
+        return level <= category.level;
+    }
+
+    public static void error(Category category, String message) {
+        if(ERROR <= category.level) {
+            append(category, ERROR, message, 0, null, null, null, null);
+        }
+    }
+
+    public static void error(Category category, String message, Throwable thrown) {
+        if(ERROR <= category.level) {
+            append(category, ERROR, message, 0, null, null, null, thrown);
+        }
+    }
+
+    public static void error(Category category, String template, Object arg, Throwable thrown) {
+        if(ERROR <= category.level) {
+            append(category, ERROR, template, 1, arg, null, null, thrown);
+        }
+    }
+
+    public static void error(Category category, String template, Object arg1, Object arg2, Throwable thrown) {
+        if(ERROR <= category.level) {
+            append(category, ERROR, template, 2, arg1, arg2, null, thrown);
+        }
+    }
+
+    public static void error(Category category, String template, Object arg1, Object arg2, Object arg3, Throwable thrown) {
+        if(ERROR <= category.level) {
+            append(category, ERROR, template, 3, arg1, arg2, arg3, thrown);
+        }
+    }
+
+    public static void warn(Category category, String message) {
+        if(WARN <= category.level) {
+            append(category, WARN, message, 0, null, null, null, null);
+        }
+    }
+
+    public static void warn(Category category, String template, Object arg) {
+        if(WARN <= category.level) {
+            append(category, WARN, template, 1, arg, null, null, null);
+        }
+    }
+
+    public static void info(Category category, String message) {
+        if(INFO <= category.level) {
+            append(category, INFO, message, 0, null, null, null, null);
+        }
+    }
+
+    public static void info(Category category, String template, Object arg) {
+        if(INFO <= category.level) {
+            append(category, INFO, template, 1, arg, null, null, null);
+        }
+    }
+
+    public static void info(Category category, String template, Object arg1, Object arg2) {
+        if(INFO <= category.level) {
+            append(category, INFO, template, 2, arg1, arg2, null, null);
+        }
+    }
+
+    public static void debug(Category category, String template, Object arg) {
+        if(DEBUG <= category.level) {
+            append(category, DEBUG, template, 1, arg, null, null, null);
+        }
+    }
+
+    public static void debug(Category category, String template, Object arg1, Object arg2) {
+        if(DEBUG <= category.level) {
+            append(category, DEBUG, template, 2, arg1, arg2, null, null);
+        }
+    }
+
+    // claims a slot of the ring, a full ring drops the record
+    private static void append(Category category, int level, String template, int argCount,
+                               Object arg1, Object arg2, Object arg3, Throwable thrown) {
+        long pos = tail.get();
+        Slot slot;
+        for(;;) {
+            slot = slots[(int) (pos & (CAPACITY - 1))];
+            long diff = slot.sequence - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    break;
+                }
+                pos = tail.get();
+            } else if(diff < 0) {
+                dropped.increment();
+                return;
+            } else {
+                pos = tail.get();
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.category = category;
+        slot.level = level;
+        slot.thread = Thread.currentThread().getName();
+        slot.template = template;
+        slot.argCount = argCount;
+        slot.arg1 = arg1;
+        slot.arg2 = arg2;
+        slot.arg3 = arg3;
+        slot.thrown = thrown;
+        slot.sequence = pos + 1;
+
+        if(writerThread == null) {
+            startWriter();
+        } else if(waiting) {
+            LockSupport.unpark(writerThread);
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if(writerThread != null) {
+            return;
+        }
+        Thread t = new Thread(AgentLog::run, "SwingAgent log writer");
+        t.setDaemon(true);
+        writerThread = t;
+        t.start();
+    }
+
+    private static void run() {
+        StringBuilder buf = new StringBuilder(256);
+        for(;;) {
+            boolean any = false;
+            Slot slot;
+            while((slot = slots[(int) (head & (CAPACITY - 1))]).sequence == head + 1) {
+                buf.setLength(0);
+                format(slot, buf);
+                slot.clear();
+                slot.sequence = head + CAPACITY;
+                head++;
+                write(buf);
+                any = true;
+            }
+            if(any) {
+                flushOutput();
+                written = head;
+                continue;
+            }
+            waiting = true;
+            if(slots[(int) (head & (CAPACITY - 1))].sequence != head + 1) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            waiting = false;
+        }
+    }
+
+    private static void format(Slot slot, StringBuilder buf) {
+        buf.append("[SwingAgent] ");
+        buf.append(String.format("%tT.%<tL", slot.time)).append(' ');
+        buf.append(LEVEL_NAMES[slot.level]).append(' ');
+        buf.append(slot.category.label).append(' ');
+        buf.append('[').append(slot.thread).append("] ");
+        try {
+            buf.append(slot.argCount == 0 ? slot.template : String.format(slot.template, slot.arg1, slot.arg2, slot.arg3));
+        } catch(RuntimeException ex) {
+            buf.append(slot.template).append(' ').append(slot.arg1).append(' ').append(slot.arg2).append(' ').append(slot.arg3);
+        }
+        buf.append(System.lineSeparator());
+        if(slot.thrown != null) {
+            StringWriter trace = new StringWriter();
+            slot.thrown.printStackTrace(new PrintWriter(trace));
+            buf.append(trace);
+        }
+    }
+
+    private static synchronized void write(CharSequence text) {
+        try {
+            out.append(text);
+            if(file != null) {
+                fileSize += text.length();
+                if(fileSize >= maxSize) {
+                    rotate();
+                }
+            }
+        } catch(IOException ex) {
+            // nowhere left to report it
+        }
+    }
+
+    private static synchronized void flushOutput() {
+        try {
+            out.flush();
+        } catch(IOException ex) {
+            // nowhere left to report it
+        }
+    }
+
+    // agent.log becomes agent.log.1, agent.log.1 becomes agent.log.2 and so on
+    private static void rotate() throws IOException {
+        out.close();
+        for(int i = files - 1; i >= 1; i--) {
+            Path from = Paths.get(file + "." + i);
+            if(Files.exists(from)) {
+                Files.move(from, Paths.get(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Paths.get(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+        openFile();
+    }
+
+    private static void openFile() throws IOException {
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        fileSize = Files.size(file);
+    }
+
+    /** waits until the records appended so far are written, at most the given time */
+    public static void flush(long millis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while(writerThread != null && written < target && System.nanoTime() < deadline) {
+            LockSupport.unpark(writerThread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    private static final class Slot {
+        // position of the record held, see ProblemRing
+        volatile long sequence;
+        long time;
+        Category category;
+        int level;
+        String thread;
+        String template;
+        int argCount;
+        Object arg1;
+        Object arg2;
+        Object arg3;
+        Throwable thrown;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void clear() {
+            category = null;
+            thread = null;
+            template = null;
+            arg1 = null;
+            arg2 = null;
+            arg3 = null;
+            thrown = null;
+        }
+    }
+}
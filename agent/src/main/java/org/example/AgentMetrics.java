@@ -0,0 +1,146 @@
+package org.example;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.example.AgentLog.Category.AGENT;
+
+/**
+ * Counters of the probes and the transformer, published through
+ * {@link SwingAgentMetricsMXBean}.
+ *
+ * The counters are {@link LongAdder}s, striped over cells so that threads probing at
+ * the same time do not contend on one field; an increment allocates nothing once a
+ * thread has its cell. Counting is opt-in with {@code metrics=true}, since every probe on the
+ * EDT paint path would count too; by default the MXBean is not registered and the probes
+ * and the transformer count nothing, at the cost of reading one field.
+ */
+public class AgentMetrics implements SwingAgentMetricsMXBean {
+
+    // set once at start, before the probes or the transformer run
+    public static boolean counting;
+
+    static final LongAdder checkOnEdt = new LongAdder();
+    static final LongAdder checkOffEdt = new LongAdder();
+    static final LongAdder threadSafeOnEdt = new LongAdder();
+    static final LongAdder threadSafeOffEdt = new LongAdder();
+    static final LongAdder finalizeOnEdt = new LongAdder();
+    static final LongAdder finalizeOffEdt = new LongAdder();
+
+    public static final LongAdder classesSeen = new LongAdder();
+    public static final LongAdder classesInstrumented = new LongAdder();
+    public static final LongAdder classesFailed = new LongAdder();
+
+    public static final LongAdder probesAvoided = new LongAdder();
+    public static final LongAdder probesDowngraded = new LongAdder();
+
+    static void configure(AgentOptions options) {
+        counting = options.getBoolean("metrics", false);
+        if(!counting) {
+            return;
+        }
+        // the platform MBean server takes a while to start, so not on the startup path
+        Thread registration = new Thread(() -> {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new AgentMetrics(),
+                        new ObjectName("org.example:type=SwingAgentMetrics"));
+            } catch(Exception ex) {
+                AgentLog.error(AGENT, "Error registering the metrics MXBean", ex);
+            }
+        }, "SwingAgent metrics");
+        registration.setDaemon(true);
+        registration.start();
+    }
+
+    @Override
+    public long getCheckEdtOnEdt() {
+        return checkOnEdt.sum();
+    }
+
+    @Override
+    public long getCheckEdtOffEdt() {
+        return checkOffEdt.sum();
+    }
+
+    @Override
+    public long getThreadSafeCheckEdtOnEdt() {
+        return threadSafeOnEdt.sum();
+    }
+
+    @Override
+    public long getThreadSafeCheckEdtOffEdt() {
+        return threadSafeOffEdt.sum();
+    }
+
+    @Override
+    public long getFinalizeCheckEdtOnEdt() {
+        return finalizeOnEdt.sum();
+    }
+
+    @Override
+    public long getFinalizeCheckEdtOffEdt() {
+        return finalizeOffEdt.sum();
+    }
+
+    @Override
+    public long getProbeInvocations() {
+        return checkOnEdt.sum() + checkOffEdt.sum() + threadSafeOnEdt.sum() + threadSafeOffEdt.sum()
+                + finalizeOnEdt.sum() + finalizeOffEdt.sum();
+    }
+
+    @Override
+    public long getViolationsReported() {
+        return ProbeSampler.getReportedViolations();
+    }
+
+    @Override
+    public long getViolationsEstimated() {
+        return ProbeSampler.getEstimatedViolations();
+    }
+
+    @Override
+    public int getProblemBacklog() {
+        return ProblemDispatcher.getBacklog();
+    }
+
+    @Override
+    public long getProblemsDropped() {
+        return ProblemDispatcher.getDropped();
+    }
+
+    @Override
+    public int getAddImplStackTraces() {
+        return AddImplTraces.size();
+    }
+
+    @Override
+    public long getClassesInstrumented() {
+        return classesInstrumented.sum();
+    }
+
+    @Override
+    public long getClassesSkipped() {
+        return classesSeen.sum() - classesInstrumented.sum() - classesFailed.sum();
+    }
+
+    @Override
+    public long getClassesFailed() {
+        return classesFailed.sum();
+    }
+
+    @Override
+    public long getProbesAvoided() {
+        return probesAvoided.sum();
+    }
+
+    @Override
+    public long getProbesDowngraded() {
+        return probesDowngraded.sum();
+    }
+
+    @Override
+    public String transformReport() {
+        return SwingAgent.getTransformReport();
+    }
+}
@@ -0,0 +1,117 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Agent arguments given as {@code -javaagent:agent.jar=key=value,key=value}.
+ *
+ * A key may be repeated to give several values, e.g. {@code include=a.*,include=b.*}.
+ * A key without a value is treated as {@code key=true}.
+ */
+public class AgentOptions {
+
+    // options which do not change the produced bytecode
+    private static final String[] RUNTIME_OPTION_PREFIXES = {"addImpl.", "analysis.stats", "attach.", "cache", "control.", "dispatch.", "eager", "hierarchy.", "hooks", "log.", "metrics", "probe.", "timeline", "trace.", "violations."};
+
+    private final Map<String, List<String>> values = new LinkedHashMap<>();
+
+    public static AgentOptions parse(String agentArguments) {
+        AgentOptions options = new AgentOptions();
+        if(agentArguments == null) {
+            return options;
+        }
+        for(String argument : agentArguments.split(",")) {
+            argument = argument.trim();
+            if(argument.isEmpty()) {
+                continue;
+            }
+            int eq = argument.indexOf('=');
+            if(eq < 0) {
+                options.add(argument, "true");
+            } else {
+                options.add(argument.substring(0, eq).trim(), argument.substring(eq + 1).trim());
+            }
+        }
+        return options;
+    }
+
+    void add(String key, String value) {
+        values.computeIfAbsent(key, k -> new ArrayList<>()).add(value);
+    }
+
+    public boolean contains(String key) {
+        return values.containsKey(key);
+    }
+
+    /** returns the last value given for the key */
+    public String get(String key, String defaultValue) {
+        List<String> list = values.get(key);
+        return list == null ? defaultValue : list.get(list.size() - 1);
+    }
+
+    public List<String> getAll(String key) {
+        List<String> list = values.get(key);
+        return list == null ? Collections.emptyList() : Collections.unmodifiableList(list);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    /** reads sizes like {@code 512k}, {@code 64m} or {@code 1g} */
+    public long getSize(String key, long defaultValue) {
+        String value = get(key, null);
+        if(value == null) {
+            return defaultValue;
+        }
+        value = value.toLowerCase();
+        long unit = 1;
+        switch(value.charAt(value.length() - 1)) {
+            case 'k': unit = 1L << 10; break;
+            case 'm': unit = 1L << 20; break;
+            case 'g': unit = 1L << 30; break;
+        }
+        if(unit != 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        return Long.parseLong(value) * unit;
+    }
+
+    /**
+     * Describes the options that change the produced bytecode. Instrumented classes
+     * are only reused when this description is the same.
+     */
+    public String instrumentationSettings() {
+        StringBuilder buf = new StringBuilder();
+        for(Map.Entry<String, List<String>> entry : values.entrySet()) {
+            if(!isRuntimeOption(entry.getKey())) {
+                buf.append(entry.getKey()).append('=').append(entry.getValue()).append(';');
+            }
+        }
+        return buf.toString();
+    }
+
+    private static boolean isRuntimeOption(String key) {
+        for(String prefix : RUNTIME_OPTION_PREFIXES) {
+            if(key.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,14 @@
+package org.example;
+
+import javax.swing.AbstractButton;
+import java.awt.event.ActionEvent;
+
+/**
+ * Called when a button added to a container performs its action.
+ *
+ * @see ComponentHooks#addActionHook(Class, ComponentActionHook)
+ */
+public interface ComponentActionHook<T extends AbstractButton> {
+
+    void actionPerformed(T button, ActionEvent event);
+}
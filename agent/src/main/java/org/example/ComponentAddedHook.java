@@ -0,0 +1,13 @@
+package org.example;
+
+import java.awt.Component;
+
+/**
+ * Called before a component is added to a container.
+ *
+ * @see ComponentHooks#addAddedHook(Class, ComponentAddedHook)
+ */
+public interface ComponentAddedHook<T extends Component> {
+
+    void componentAdded(T component);
+}
@@ -0,0 +1,159 @@
+package org.example;
+
+import javax.swing.AbstractButton;
+import javax.swing.JButton;
+import java.awt.Component;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.example.AgentLog.Category.HOOKS;
+
+/**
+ * Hooks called for components added to containers, and for the actions of added buttons.
+ *
+ * Hooks are registered for a component class and apply to its subclasses. They can be
+ * registered at runtime, or at agent start with {@code hooks=<class>} naming a
+ * {@link Provider} with a public no-argument constructor.
+ *
+ * The hooks of a class are resolved once into a table, so a component class without
+ * hooks costs one lookup and no allocation. The table is rebuilt when hooks change.
+ * Buttons get a single shared action listener, only once and only if an action hook
+ * applies to them.
+ */
+public class ComponentHooks {
+
+    /** registers hooks when the agent starts */
+    public interface Provider {
+        void registerHooks();
+    }
+
+    private static final Table NO_HOOKS = new Table(new ComponentAddedHook<?>[0], new ComponentActionHook<?>[0]);
+
+    private static final List<Registration> registrations = new CopyOnWriteArrayList<>();
+
+    private static volatile ClassValue<Table> tables = newTables();
+
+    private static final ActionListener ACTION_LISTENER = ComponentHooks::actionPerformed;
+
+    public static <T extends Component> void addAddedHook(Class<T> type, ComponentAddedHook<? super T> hook) {
+        register(new Registration(type, hook, false));
+    }
+
+    public static <T extends AbstractButton> void addActionHook(Class<T> type, ComponentActionHook<? super T> hook) {
+        register(new Registration(type, hook, true));
+    }
+
+    /** removes an added or action hook from all classes it was registered for */
+    public static void removeHook(Object hook) {
+        if(registrations.removeIf(registration -> registration.hook == hook)) {
+            tables = newTables();
+        }
+    }
+
+    private static void register(Registration registration) {
+        registrations.add(registration);
+        tables = newTables();
+    }
+
+    public static void configure(AgentOptions options) throws ReflectiveOperationException {
+        for(String className : options.getAll("hooks")) {
+            Class<?> type = Class.forName(className, true, ClassLoader.getSystemClassLoader());
+            ((Provider) type.getDeclaredConstructor().newInstance()).registerHooks();
+        }
+        if(options.getBoolean("hooks.buttonLog", false)) {
+            addAddedHook(JButton.class, button -> System.out.println("Inserted a new button: " + button.getText()));
+            addActionHook(JButton.class,
+                    (button, event) -> System.out.printf("Button '%s' clicked from Agent!%n", button.getText()));
+        }
+    }
+
+    /** called from {@code Container.addImpl} */
+    @SuppressWarnings("unchecked")
+    static void componentAdded(Component component) {
+        Table table = tables.get(component.getClass());
+        if(table == NO_HOOKS) {
+            return;
+        }
+        for(ComponentAddedHook<?> hook : table.added) {
+            try {
+                ((ComponentAddedHook<Component>) hook).componentAdded(component);
+            } catch(Exception ex) {
+                AgentLog.error(HOOKS, "Component hook failed: %s", hook, ex);
+            }
+        }
+        if(table.action.length > 0) {
+            // a re-parented button already has the listener
+            AbstractButton button = (AbstractButton) component;
+            for(ActionListener listener : button.getActionListeners()) {
+                if(listener == ACTION_LISTENER) {
+                    return;
+                }
+            }
+            button.addActionListener(ACTION_LISTENER);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void actionPerformed(ActionEvent event) {
+        Object source = event.getSource();
+        if(!(source instanceof AbstractButton)) {
+            return;
+        }
+        for(ComponentActionHook<?> hook : tables.get(source.getClass()).action) {
+            try {
+                ((ComponentActionHook<AbstractButton>) hook).actionPerformed((AbstractButton) source, event);
+            } catch(Exception ex) {
+                AgentLog.error(HOOKS, "Component hook failed: %s", hook, ex);
+            }
+        }
+    }
+
+    private static ClassValue<Table> newTables() {
+        return new ClassValue<Table>() {
+            @Override
+            protected Table computeValue(Class<?> type) {
+                List<ComponentAddedHook<?>> added = new ArrayList<>();
+                List<ComponentActionHook<?>> action = new ArrayList<>();
+                for(Registration registration : registrations) {
+                    if(!registration.type.isAssignableFrom(type)) {
+                        continue;
+                    }
+                    if(registration.action) {
+                        action.add((ComponentActionHook<?>) registration.hook);
+                    } else {
+                        added.add((ComponentAddedHook<?>) registration.hook);
+                    }
+                }
+                if(added.isEmpty() && action.isEmpty()) {
+                    return NO_HOOKS;
+                }
+                return new Table(added.toArray(new ComponentAddedHook<?>[0]), action.toArray(new ComponentActionHook<?>[0]));
+            }
+        };
+    }
+
+    private static final class Registration {
+        final Class<?> type;
+        final Object hook;
+        final boolean action;
+
+        Registration(Class<?> type, Object hook, boolean action) {
+            this.type = type;
+            this.hook = hook;
+            this.action = action;
+        }
+    }
+
+    private static final class Table {
+        final ComponentAddedHook<?>[] added;
+        final ComponentActionHook<?>[] action;
+
+        Table(ComponentAddedHook<?>[] added, ComponentActionHook<?>[] action) {
+            this.added = added;
+            this.action = action;
+        }
+    }
+}
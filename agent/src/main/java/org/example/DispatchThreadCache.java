@@ -0,0 +1,97 @@
+package org.example;
+
+import java.awt.EventQueue;
+import java.lang.instrument.Instrumentation;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Remembers which thread is currently dispatching AWT events so that probes can
+ * recognise the EDT with a single reference comparison.
+ *
+ * The cache is kept up to date by hooks woven into {@code java.awt.EventQueue}:
+ * a dispatch thread being started or handed over by {@code push} replaces the
+ * cached thread, a detached thread clears it, and {@code pop} makes the cache
+ * unknown. While it is unknown only a thread of the dispatch thread class can be
+ * the EDT; the first probe on one asks {@link EventQueue#isDispatchThread()} and
+ * publishes the answer, all other threads are off the EDT without taking its lock.
+ */
+public class DispatchThreadCache {
+
+    // marks the state where the dispatch thread has to be looked up again
+    private static final Object UNKNOWN = new Object();
+
+    // current dispatch thread, null when there is none or UNKNOWN
+    private static final AtomicReference<Object> dispatchThread = new AtomicReference<>(UNKNOWN);
+
+    // class of the threads started by EventQueue, null if it cannot be loaded
+    private static final Class<?> dispatchThreadClass = dispatchThreadClass();
+
+    /** prepares the cache when the agent starts */
+    public static void install(Instrumentation instrumentation) {
+        for(Class<?> loaded : instrumentation.getAllLoadedClasses()) {
+            if("java.awt.EventQueue".equals(loaded.getName())) {
+                // event queue exists already, its dispatch thread is not known yet
+                dispatchThread.set(UNKNOWN);
+                return;
+            }
+        }
+        // hooks are woven before any dispatch thread can be started
+        dispatchThread.set(null);
+    }
+
+    /** forgets the dispatch thread, e.g. when the EventQueue hooks were woven into a running queue */
+    public static void reset() {
+        dispatchThread.set(UNKNOWN);
+    }
+
+    /** determines if the current thread is the event dispatch thread */
+    public static boolean isDispatchThread() {
+        Object edt = dispatchThread.get();
+        Thread current = Thread.currentThread();
+        if(edt == current) {
+            return true;
+        }
+        if(edt != UNKNOWN) {
+            return false;
+        }
+        return resolve(current);
+    }
+
+    private static boolean resolve(Thread current) {
+        // any other thread would take the lock of the event queue to learn it is not the EDT
+        if(dispatchThreadClass != null && current.getClass() != dispatchThreadClass) {
+            return false;
+        }
+        if(EventQueue.isDispatchThread()) {
+            dispatchThread.compareAndSet(UNKNOWN, current);
+            return true;
+        }
+        return false;
+    }
+
+    private static Class<?> dispatchThreadClass() {
+        try {
+            return Class.forName("java.awt.EventDispatchThread", false, null);
+        } catch(ClassNotFoundException | LinkageError ex) {
+            return null;
+        }
+    }
+
+    /** called from EventQueue when a dispatch thread starts or is handed over to a pushed queue */
+    public static void dispatchThreadChanged(Thread thread) {
+        if(thread != null) {
+            dispatchThread.set(thread);
+        }
+    }
+
+    /** called from EventQueue when a dispatch thread stops pumping events */
+    public static void dispatchThreadDetached(Thread thread) {
+        // a replacement thread may have been started already
+        dispatchThread.compareAndSet(thread, null);
+    }
+
+    /** called from EventQueue after pop() */
+    public static void dispatchQueuePopped() {
+        dispatchThread.set(UNKNOWN);
+    }
+}
@@ -0,0 +1,116 @@
+package org.example;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+import static org.example.AgentLog.Category.AGENT;
+
+/**
+ * Links the EDT probes of classes instrumented with {@code linkage=indy}.
+ *
+ * Such classes call the probes through {@code invokedynamic}, bootstrapped here to one
+ * shared {@link MutableCallSite} per probe. Switching the probes off
+ * ({@code probe.enabled=false}, the control file or JMX) points the call sites at a
+ * no-op, which the JIT compiler inlines to nothing, so idle probes cost nothing in
+ * compiled code. Switching them on points the call sites at the checks again. Classes
+ * older than Java 7 cannot hold {@code invokedynamic} and call the probes directly;
+ * with {@code linkage=static} all do, and switched off probes return at once.
+ *
+ * A thread inside probed calls while the probes are switched misses the matching exits
+ * or entries; its nesting depth is reset by its next probe after switching on.
+ */
+public final class ProbeLinker {
+
+    private static final MethodType PROBE = MethodType.methodType(void.class);
+
+    // whether the probes are emitted as invokedynamic, set before instrumenting anything
+    public static boolean invokedynamic;
+
+    // set once the call sites exist, switching before does not create them
+    private static volatile boolean linked;
+
+    private ProbeLinker() {
+    }
+
+    public static void configure(AgentOptions options) {
+        String linkage = options.get("linkage", "static");
+        if(!linkage.equals("static") && !linkage.equals("indy")) {
+            AgentLog.warn(AGENT, "Unknown probe linkage %s, using static", linkage);
+        }
+        invokedynamic = linkage.equals("indy");
+        if(invokedynamic) {
+            // method handles are set up before the transformer is added, which would see their classes
+            Sites.check.getTarget();
+        }
+        setEnabled(options.getBoolean("probe.enabled", true));
+    }
+
+    /** the bootstrap method of the probe call sites */
+    public static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type) {
+        if(!type.equals(PROBE)) {
+            throw new IllegalArgumentException("Not a probe type: " + type);
+        }
+        switch(name) {
+            case "checkEDT": return Sites.check;
+            case "threadSafeCheckEDT": return Sites.threadSafeCheck;
+            case "finalizeCheckEDT": return Sites.finalizeCheck;
+            default: throw new IllegalArgumentException("Unknown probe: " + name);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return SwingAgent.probesEnabled;
+    }
+
+    public static synchronized void setEnabled(boolean enabled) {
+        if(enabled == SwingAgent.probesEnabled) {
+            return;
+        }
+        if(enabled) {
+            // marks left by calls which ran while switching are no longer trusted
+            SwingAgent.probeGeneration++;
+        }
+        SwingAgent.probesEnabled = enabled;
+        if(linked) {
+            Sites.relink(enabled);
+        }
+        AgentLog.info(AGENT, "EDT probes switched %s", enabled ? "on" : "off");
+    }
+
+    private static final class Sites {
+        static final MethodHandle NO_OP = MethodHandles.empty(PROBE);
+        static final MethodHandle CHECK = probe("checkEDT");
+        static final MethodHandle THREAD_SAFE_CHECK = probe("threadSafeCheckEDT");
+        static final MethodHandle FINALIZE_CHECK = probe("finalizeCheckEDT");
+
+        static final MutableCallSite check = new MutableCallSite(PROBE);
+        static final MutableCallSite threadSafeCheck = new MutableCallSite(PROBE);
+        static final MutableCallSite finalizeCheck = new MutableCallSite(PROBE);
+
+        static {
+            synchronized(ProbeLinker.class) {
+                relink(SwingAgent.probesEnabled);
+                linked = true;
+            }
+        }
+
+        private static MethodHandle probe(String name) {
+            try {
+                return MethodHandles.lookup().findStatic(SwingAgent.class, name, PROBE);
+            } catch(ReflectiveOperationException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+
+        // runs with the ProbeLinker lock held
+        static void relink(boolean enabled) {
+            check.setTarget(enabled ? CHECK : NO_OP);
+            threadSafeCheck.setTarget(enabled ? THREAD_SAFE_CHECK : NO_OP);
+            finalizeCheck.setTarget(enabled ? FINALIZE_CHECK : NO_OP);
+            MutableCallSite.syncAll(new MutableCallSite[] {check, threadSafeCheck, finalizeCheck});
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.example;
+
+/**
+ * Tells the probe runtime who configures it.
+ *
+ * Classes instrumented by {@code org.example.agent.OfflineInstrumenter} run without the
+ * agent; {@link SwingAgent} then configures the probes from the {@code swingagent.options}
+ * system property when it is initialized. The agent configures them itself and says so
+ * here before anything initializes {@link SwingAgent}.
+ */
+public final class ProbeRuntime {
+
+    private static volatile boolean agentStarted;
+
+    private ProbeRuntime() {
+    }
+
+    /** called by premain and agentmain before the agent touches {@link SwingAgent} */
+    public static void agentStarting() {
+        agentStarted = true;
+    }
+
+    static boolean isAgentStarted() {
+        return agentStarted;
+    }
+}
@@ -0,0 +1,138 @@
+package org.example;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides which EDT violations are reported, so the agent can run in production.
+ *
+ * <ul>
+ *   <li>{@code always} reports every violation,</li>
+ *   <li>{@code sample} reports one in {@code probe.sampleEvery} violations of a thread,</li>
+ *   <li>{@code rate} reports at most {@code probe.ratePerSecond} violations per second,</li>
+ *   <li>{@code budget} reports at most {@code probe.classBudget} violations per Swing class.</li>
+ * </ul>
+ * Every reported violation carries the number of violations it stands for, and the
+ * estimated total is kept in {@link #getEstimatedViolations()}.
+ */
+class ProbeSampler {
+
+    enum Mode { ALWAYS, SAMPLE, RATE, BUDGET }
+
+    static volatile Mode mode = Mode.ALWAYS;
+
+    static int sampleEvery = 100;
+
+    private static int ratePerSecond = 10;
+    private static final long RATE_PERIOD = TimeUnit.SECONDS.toNanos(1);
+    private static final long RATE_ORIGIN = System.nanoTime();
+    // number of the current window in the high half and the reports in it in the low half,
+    // so that starting a window and counting a report are one compare-and-set
+    private static final AtomicLong rateWindow = new AtomicLong();
+    private static final LongAdder rateSkipped = new LongAdder();
+
+    private static int classBudget = 50;
+    private static final ClassValue<AtomicInteger> classReports = new ClassValue<AtomicInteger>() {
+        @Override
+        protected AtomicInteger computeValue(Class<?> type) {
+            return new AtomicInteger();
+        }
+    };
+
+    private static final LongAdder estimatedViolations = new LongAdder();
+    private static final LongAdder reportedViolations = new LongAdder();
+
+    static void configure(AgentOptions options) {
+        mode = Mode.valueOf(options.get("probe.mode", "always").toUpperCase());
+        sampleEvery = Math.max(1, options.getInt("probe.sampleEvery", sampleEvery));
+        ratePerSecond = Math.max(1, options.getInt("probe.ratePerSecond", ratePerSecond));
+        classBudget = Math.max(0, options.getInt("probe.classBudget", classBudget));
+    }
+
+    /** whether {@link #sample} needs the location of the violation */
+    static boolean budgetsByClass() {
+        return mode == Mode.BUDGET;
+    }
+
+    /**
+     * Called for the outermost violation of a thread.
+     *
+     * @param location where the violation happened, only needed when {@link #budgetsByClass()}
+     * @return number of violations the report stands for, 0 if it is not reported
+     */
+    static long sample(SwingAgent.ThreadMark mark, StackCapture.Location location) {
+        long weight;
+        switch(mode) {
+            case SAMPLE:
+                if(mark.sampleCountdown == 0) {
+                    // first violation of the thread, start at a random point of the period
+                    mark.sampleCountdown = ThreadLocalRandom.current().nextInt(sampleEvery) + 1;
+                }
+                if(--mark.sampleCountdown > 0) {
+                    return 0;
+                }
+                mark.sampleCountdown = sampleEvery;
+                estimatedViolations.add(sampleEvery);
+                weight = sampleEvery;
+                break;
+            case RATE:
+                estimatedViolations.increment();
+                weight = rateLimited();
+                break;
+            case BUDGET:
+                estimatedViolations.increment();
+                weight = withinClassBudget(location != null ? location : StackCapture.locate()) ? 1 : 0;
+                break;
+            default:
+                estimatedViolations.increment();
+                weight = 1;
+        }
+        if(weight > 0) {
+            reportedViolations.increment();
+        }
+        return weight;
+    }
+
+    private static long rateLimited() {
+        long window = (System.nanoTime() - RATE_ORIGIN) / RATE_PERIOD & 0xFFFFFFFFL;
+        for(;;) {
+            long state = rateWindow.get();
+            long reports = state & 0xFFFFFFFFL;
+            // a thread which read the clock before another one started the next window counts in that one
+            if(state >>> 32 < window) {
+                reports = 0;
+            } else {
+                window = state >>> 32;
+            }
+            if(reports >= ratePerSecond) {
+                rateSkipped.increment();
+                return 0;
+            }
+            if(rateWindow.compareAndSet(state, window << 32 | (reports + 1))) {
+                // stands for the violations skipped since the previous report
+                return 1 + rateSkipped.sumThenReset();
+            }
+        }
+    }
+
+    private static boolean withinClassBudget(StackCapture.Location location) {
+        return classReports.get(location.probedClass()).incrementAndGet() <= classBudget;
+    }
+
+    /** estimated number of outermost violations, including those not reported */
+    static long getEstimatedViolations() {
+        return estimatedViolations.sum();
+    }
+
+    static long getReportedViolations() {
+        return reportedViolations.sum();
+    }
+
+    static String statistics() {
+        return String.format("probe mode %s: %d violations reported, %d estimated",
+                mode.name().toLowerCase(), getReportedViolations(), getEstimatedViolations());
+    }
+}
@@ -26,31 +26,61 @@ public class Problem {
 
     private String problemDescription;
     private StackTraceElement[] problemTrace;
+    private long estimatedCount;
+
+    // thread of a violation whose description is built on first use
+    private String threadName;
+    private String problemTraceString;
     
     public Problem(String _problemDescription, StackTraceElement[] _problemTrace) {
+        this(_problemDescription, _problemTrace, 1);
+    }
+
+    public Problem(String _problemDescription, StackTraceElement[] _problemTrace, long _estimatedCount) {
         problemDescription = _problemDescription;
         problemTrace = _problemTrace;
+        estimatedCount = _estimatedCount;
+    }
+
+    /** problem of an EDT violation, the violating method being the first frame of the trace */
+    static Problem violation(String _threadName, StackTraceElement[] _problemTrace, long _estimatedCount) {
+        Problem problem = new Problem(null, _problemTrace, _estimatedCount);
+        problem.threadName = _threadName;
+        return problem;
     }
 
     public String getProblemDescription() {
+        if(problemDescription == null) {
+            String method = problemTrace.length == 0 ? "unknown"
+                    : problemTrace[0].getClassName() + "." + problemTrace[0].getMethodName();
+            problemDescription = "The " + method + " method called from " + threadName + " thread";
+        }
         return problemDescription;
     }
 
     public StackTraceElement[] getProblemTrace() {
         return problemTrace;
     }
+
+    /** number of violations this problem stands for when the agent samples violations */
+    public long getEstimatedCount() {
+        return estimatedCount;
+    }
     
     public String getProblemTraceAsString() {
-        StringBuilder buf = new StringBuilder();
-        for(StackTraceElement curElem : problemTrace) {
-            buf.append(curElem.toString());
-            buf.append("\n");
+        if(problemTraceString == null) {
+            StringBuilder buf = new StringBuilder();
+            for(StackTraceElement curElem : problemTrace) {
+                buf.append(curElem.toString());
+                buf.append("\n");
+            }
+            problemTraceString = buf.toString();
         }
-        return buf.toString();
+        return problemTraceString;
     }
 
     @Override
     public String toString() {
-        return problemDescription;
+        return getProblemDescription();
     }
 }
\ No newline at end of file
@@ -0,0 +1,198 @@
+package org.example;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+import static org.example.AgentLog.Category.DISPATCH;
+
+/**
+ * Delivers problems to the listeners on a daemon thread, so a slow listener does not
+ * stall the violating threads.
+ *
+ * Problems wait in a bounded {@link ProblemRing}; while no listener is registered they
+ * are kept there for the first one. When the ring is full, {@code dispatch.overflow}
+ * decides what is lost:
+ * <ul>
+ *   <li>{@code drop-newest} drops the new problem (default),</li>
+ *   <li>{@code drop-oldest} drops the oldest waiting problem,</li>
+ *   <li>{@code sample} keeps one in {@code dispatch.sampleEvery} new problems, dropping
+ *   the oldest for it.</li>
+ * </ul>
+ * The dispatcher thread holds a thread mark for its whole life, so listeners touching
+ * Swing from it are not reported.
+ */
+class ProblemDispatcher {
+
+    enum Overflow { DROP_NEWEST, DROP_OLDEST, SAMPLE }
+
+    private static final CopyOnWriteArrayList<Registration> listeners = new CopyOnWriteArrayList<>();
+
+    private static ProblemRing ring = new ProblemRing(1024);
+    private static Overflow overflow = Overflow.DROP_NEWEST;
+    private static int sampleEvery = 10;
+    private static final AtomicLong overflowed = new AtomicLong();
+
+    private static final LongAdder enqueued = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static final LongAdder delivered = new LongAdder();
+
+    private static volatile Thread thread;
+    private static volatile boolean waiting;
+    private static volatile boolean delivering;
+
+    static void configure(AgentOptions options) {
+        overflow = Overflow.valueOf(options.get("dispatch.overflow", "drop-newest").toUpperCase().replace('-', '_'));
+        sampleEvery = Math.max(1, options.getInt("dispatch.sampleEvery", sampleEvery));
+        ring = new ProblemRing(options.getInt("dispatch.capacity", ring.capacity()));
+    }
+
+    static void addListener(ProblemListener listener, Predicate<Problem> filter) {
+        listeners.add(new Registration(listener, filter));
+        start();
+        LockSupport.unpark(thread);
+    }
+
+    static void removeListener(ProblemListener listener) {
+        listeners.removeIf(registration -> registration.listener == listener);
+    }
+
+    static boolean hasListeners() {
+        return !listeners.isEmpty();
+    }
+
+    /** queues the problem for the listeners, never blocks */
+    static void dispatch(Problem problem) {
+        if(!ring.offer(problem) && !overflow(problem)) {
+            dropped.increment();
+            return;
+        }
+        enqueued.increment();
+        if(thread == null) {
+            start();
+        }
+        if(waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // makes room for the problem according to the overflow policy
+    private static boolean overflow(Problem problem) {
+        switch(overflow) {
+            case SAMPLE:
+                // a sampled problem replaces the oldest one
+                return overflowed.incrementAndGet() % sampleEvery == 0 && replaceOldest(problem);
+            case DROP_OLDEST:
+                return replaceOldest(problem);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean replaceOldest(Problem problem) {
+        for(int attempt = 0; attempt < 4; attempt++) {
+            if(ring.poll() != null) {
+                dropped.increment();
+            }
+            if(ring.offer(problem)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static synchronized void start() {
+        if(thread != null) {
+            return;
+        }
+        Thread t = new Thread(ProblemDispatcher::run, "SwingAgent problem dispatcher");
+        t.setDaemon(true);
+        thread = t;
+        t.start();
+    }
+
+    private static void run() {
+        // listeners calling Swing from here must not produce new problems
+        SwingAgent.ThreadMark mark = SwingAgent.threadMarks.get();
+        mark.baseDepth = 1;
+        mark.depth = 1;
+        for(;;) {
+            // set before polling so that flush never sees an empty ring while a problem is in hand
+            delivering = true;
+            Problem problem = listeners.isEmpty() ? null : ring.poll();
+            if(problem == null) {
+                delivering = false;
+                // dispatch and addListener unpark it, a problem offered before waiting was set is seen below
+                waiting = true;
+                if(listeners.isEmpty() || ring.isEmpty()) {
+                    LockSupport.park(ProblemDispatcher.class);
+                }
+                waiting = false;
+                continue;
+            }
+            try {
+                deliver(problem);
+            } finally {
+                delivering = false;
+            }
+        }
+    }
+
+    private static void deliver(Problem problem) {
+        for(Registration registration : listeners) {
+            try {
+                if(registration.filter.test(problem)) {
+                    registration.listener.problemOccured(problem);
+                }
+            } catch(Exception ex) {
+                AgentLog.error(DISPATCH, "Problem listener failed: %s", registration.listener, ex);
+            }
+        }
+        delivered.increment();
+    }
+
+    /** waits until the queued problems are delivered, at most the given time */
+    static void flush(long millis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        while(thread != null && hasListeners() && (!ring.isEmpty() || delivering)
+                && System.nanoTime() < deadline) {
+            LockSupport.unpark(thread);
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    static long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    static long getDropped() {
+        return dropped.sum();
+    }
+
+    static long getDelivered() {
+        return delivered.sum();
+    }
+
+    /** problems waiting for delivery */
+    static int getBacklog() {
+        return ring.size();
+    }
+
+    static String statistics() {
+        return String.format("problem dispatch: %d enqueued, %d dropped, %d delivered, %d waiting",
+                getEnqueued(), getDropped(), getDelivered(), ring.size());
+    }
+
+    private static final class Registration {
+        final ProblemListener listener;
+        final Predicate<Problem> filter;
+
+        Registration(ProblemListener listener, Predicate<Problem> filter) {
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package org.example;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of problems on a ring of sequenced slots.
+ *
+ * Any thread may offer. Polling is done by the dispatcher thread, and by producers
+ * making room when the oldest problems are dropped, so both sides are multi-threaded.
+ * A slot is free for position {@code p} when its sequence is {@code p}, and holds the
+ * problem of position {@code p} when its sequence is {@code p + 1}.
+ */
+class ProblemRing {
+
+    private final Problem[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // next position to write and to read
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    // bounds the arrays allocated up front, and keeps the rounding from overflowing
+    private static final int MAX_CAPACITY = 1 << 20;
+
+    /** @param capacity rounded up to a power of two, at most 2^20 */
+    ProblemRing(int capacity) {
+        int size = Integer.highestOneBit(Math.min(Math.max(2, capacity), MAX_CAPACITY) - 1) << 1;
+        buffer = new Problem[size];
+        sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /** @return false if the ring is full */
+    boolean offer(Problem problem) {
+        long pos = tail.get();
+        for(;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    buffer[index] = problem;
+                    sequences.set(index, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if(diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /** @return the oldest problem or null if the ring is empty */
+    Problem poll() {
+        long pos = head.get();
+        for(;;) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if(diff == 0) {
+                if(head.compareAndSet(pos, pos + 1)) {
+                    Problem problem = buffer[index];
+                    buffer[index] = null;
+                    sequences.set(index, pos + mask + 1);
+                    return problem;
+                }
+                pos = head.get();
+            } else if(diff < 0) {
+                return null;
+            } else {
+                pos = head.get();
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    int size() {
+        return (int) Math.max(0, tail.get() - head.get());
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+}
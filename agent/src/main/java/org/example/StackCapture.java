@@ -0,0 +1,113 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Captures the stack of a violation with {@link StackWalker}, stopping after
+ * {@code trace.depth} frames so deep Swing stacks are not materialised.
+ *
+ * The agent frames on top of the stack are always dropped. The first remaining frame is
+ * the method holding the probe; after it, frames of the packages given by {@code trace.filter} (Swing and AWT
+ * internals by default, {@code trace.filter=none} keeps them) are skipped.
+ */
+class StackCapture {
+
+    static final String[] SWING_PACKAGES = {
+            "javax.swing.", "java.awt.", "sun.awt.", "sun.swing.", "java.lang.reflect.", "jdk.internal."
+    };
+
+    // keeps the classes, agent frames are told by their loader and the budget of the probe mode
+    // is counted by the class of the probed method
+    static final StackWalker walker = StackWalker.getInstance(StackWalker.Option.RETAIN_CLASS_REFERENCE);
+
+    static int depth = 32;
+
+    static String[] filter = SWING_PACKAGES;
+
+    static void configure(AgentOptions options) {
+        depth = options.getInt("trace.depth", depth);
+        List<String> packages = options.getAll("trace.filter");
+        if(packages.contains("none")) {
+            filter = new String[0];
+        } else if(!packages.isEmpty()) {
+            filter = packages.toArray(new String[0]);
+        }
+    }
+
+    /** @return the frames of the calling thread, the probed method first */
+    static StackTraceElement[] capture() {
+        return walker.walk(StackCapture::capture);
+    }
+
+    private static StackTraceElement[] capture(Stream<StackWalker.StackFrame> frames) {
+        int limit = depth > 0 ? depth : Integer.MAX_VALUE;
+        List<StackTraceElement> trace = new ArrayList<>(Math.min(limit, 64));
+        Iterator<StackWalker.StackFrame> it = frames.iterator();
+        while(it.hasNext() && trace.size() < limit) {
+            StackWalker.StackFrame frame = it.next();
+            if(trace.isEmpty() ? !isAgentClass(frame.getDeclaringClass()) : !startsWithAny(frame.getClassName(), filter)) {
+                trace.add(frame.toStackTraceElement());
+            }
+        }
+        return trace.toArray(new StackTraceElement[0]);
+    }
+
+    /** @return the probed method of the calling thread and its first caller outside Swing */
+    static Location locate() {
+        return walker.walk(StackCapture::locate);
+    }
+
+    private static Location locate(Stream<StackWalker.StackFrame> frames) {
+        StackWalker.StackFrame probed = null;
+        Iterator<StackWalker.StackFrame> it = frames.iterator();
+        while(it.hasNext()) {
+            StackWalker.StackFrame frame = it.next();
+            if(probed == null) {
+                // the first frame after the agent is the method holding the probe
+                if(!isAgentClass(frame.getDeclaringClass())) {
+                    probed = frame;
+                }
+            } else if(!isSwingClass(frame.getClassName())) {
+                return new Location(probed, frame);
+            }
+        }
+        return new Location(probed, null);
+    }
+
+    // the probe runtime is defined by the boot loader, application classes sharing its package are not
+    static boolean isAgentClass(Class<?> type) {
+        return type.getClassLoader() == null && type.getName().startsWith("org.example.");
+    }
+
+    static boolean isSwingClass(String className) {
+        return startsWithAny(className, SWING_PACKAGES);
+    }
+
+    /** where a violation happened, found by one walk of the stack */
+    static final class Location {
+        // null if the stack holds agent frames only
+        final StackWalker.StackFrame probed;
+        final StackWalker.StackFrame caller;
+
+        Location(StackWalker.StackFrame probed, StackWalker.StackFrame caller) {
+            this.probed = probed;
+            this.caller = caller;
+        }
+
+        Class<?> probedClass() {
+            return probed == null ? SwingAgent.class : probed.getDeclaringClass();
+        }
+    }
+
+    private static boolean startsWithAny(String className, String[] prefixes) {
+        for(String prefix : prefixes) {
+            if(className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,306 +1,311 @@
 package org.example;
 
-import javassist.*;
-
 import javax.swing.*;
 import java.awt.*;
-import java.io.File;
-import java.io.IOException;
-import java.lang.instrument.ClassFileTransformer;
-import java.lang.instrument.IllegalClassFormatException;
-import java.lang.instrument.Instrumentation;
-import java.security.ProtectionDomain;
-import java.text.MessageFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import static org.example.AgentLog.Category.AGENT;
 
 public class SwingAgent {
-    static ClassPool pool;
 
     // marks already visited methods in one thread. Used for thread violation checking
     // to not report same violation multiple times when other methods are called from
     // violating method
-    static ConcurrentHashMap<Thread, Integer> threadMarks = new ConcurrentHashMap<>();
+    static final ThreadLocal<ThreadMark> threadMarks = ThreadLocal.withInitial(ThreadMark::new);
 
+    // listener given by setProblemListener, further ones are added to the dispatcher
     static ProblemListener problemListener;
     static boolean instrumented = false;
 
-    // problems are stored in this vector before listener is added to the agent
-    static List<Problem> futureProblems = Collections.synchronizedList(new ArrayList<>());
-
-    // keeps all stack traces o
-    static WeakHashMap<Component, StackTraceElement[]> componentAddImplStackTraces = new WeakHashMap<Component, StackTraceElement[]>();
-
     //
     static boolean monitorEDTViolations;
 
+    // EDT probes switched on, see ProbeLinker; the generation counts switching them on
+    static volatile boolean probesEnabled = true;
+    static volatile int probeGeneration;
+
     public static boolean isMonitorEDTViolations() {
         return monitorEDTViolations;
     }
 
-    public static void premain(String agentArguments, Instrumentation instrumentation) {
-        System.out.println("Hello from Agent!");
-        instrumentation.addTransformer(new Transformer());
-        pool = ClassPool.getDefault();
-        pool.importPackage("org.example");
-        // Log.instrumentation.info("Instrumentation agent of Swing Explorer activated");
-        instrumented = true;
+    // parts of the agent reached through the API, set while it is attached
+    private static volatile Supplier<String> transformReport;
+    private static volatile Runnable detacher;
+
+    static {
+        String offlineOptions = System.getProperty("swingagent.options");
+        // the agent configures the probes itself
+        if(offlineOptions != null && !ProbeRuntime.isAgentStarted()) {
+            startOffline(AgentOptions.parse(offlineOptions));
+        }
     }
 
-    public static boolean isInstrumented() {
-        return instrumented;
+    /**
+     * Called by the agent once its transformer is added.
+     *
+     * @param transformReport the report of {@link #getTransformReport()}
+     * @param detacher removes the agent, see {@link #detach()}
+     */
+    public static void agentAttached(Supplier<String> transformReport, Runnable detacher) {
+        SwingAgent.transformReport = transformReport;
+        SwingAgent.detacher = detacher;
+        instrumented = true;
     }
 
-    public static void setProblemListener(ProblemListener _violationHandler) {
-        problemListener = _violationHandler;
-        if(problemListener == null) {
-            return;
-        }
+    /** called by the agent once its transformer is removed */
+    public static void agentDetached() {
+        instrumented = false;
+    }
 
-        // notifying listener about all previousely accured problems
-        for(Problem problem : futureProblems) {
-            problemListener.problemOccured(problem);
+    /** removes the transformer and restores the original bytecode of the instrumented classes */
+    public static void detach() {
+        Runnable detach = detacher;
+        if(detach != null) {
+            detach.run();
         }
-        futureProblems.clear();
     }
 
-    private static void notifyProblemListener() {
-        // obtain stack information
-        StackTraceElement[] trace = Thread.currentThread().getStackTrace();
-        final StackTraceElement[] newTrace = new StackTraceElement[trace.length - 3];
-        System.arraycopy(trace, 3, newTrace,  0, newTrace.length);
-        final String threadName = Thread.currentThread().getName();
-
-        // notify
-        String description = MessageFormat.format("The {1}.{2} method called from {0} thread", threadName, newTrace[0].getClassName(), newTrace[0].getMethodName());
-
-        Problem problem = new Problem(description, newTrace);
-        if(problemListener != null) {
-            problemListener.problemOccured(problem);
-        } else {
-            if(monitorEDTViolations) {
-                futureProblems.add(problem);
+    /** configures what the probes report, for the agent and for classes instrumented ahead of time */
+    public static void configureProbes(AgentOptions options) {
+        try {
+            ProbeSampler.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading probe mode, reporting every violation", ex);
+        }
+        try {
+            StackCapture.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading trace options, using the defaults", ex);
+        }
+        try {
+            ProblemDispatcher.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading dispatch options, using the defaults", ex);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            ProblemDispatcher.flush(1000);
+            if(options.getBoolean("dispatch.stats", false)) {
+                System.out.printf("[SwingAgent] %s%n", ProblemDispatcher.statistics());
             }
+        }, "SwingAgent problem dispatch"));
+        try {
+            AddImplTraces.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading addImpl options, using the defaults", ex);
+        }
+        ViolationIndex.maxSites = options.getInt("violations.maxSites", ViolationIndex.maxSites);
+        if(options.getBoolean("violations.report", false)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.printf("[SwingAgent] %s", ViolationIndex.summary()), "SwingAgent violation report"));
         }
+        if(options.getBoolean("probe.stats", false)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.printf("[SwingAgent] %s%n", ProbeSampler.statistics()), "SwingAgent probe statistics"));
+        }
+        AgentMetrics.configure(options);
     }
 
-    /** performs checking if we are in the EDT */
-    public static void checkEDT() {
-        if(isNotEventDispatchThread()) {
-            // if we are not in EDT then memorise this thread
-            // so that eliminate subsequent call checkings
-            Integer entries = (Integer)threadMarks.get(Thread.currentThread());
-            if(entries == null) {
-                entries = 1;
-                notifyProblemListener();
-            }
-            threadMarks.put(Thread.currentThread(), entries + 1);
+    /**
+     * Configures the probes of classes instrumented by {@code org.example.agent.OfflineInstrumenter}, which run
+     * without the agent: options are taken from the {@code swingagent.options} system property.
+     */
+    private static synchronized void startOffline(AgentOptions options) {
+        try {
+            AgentLog.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading log options, logging to the console", ex);
+        }
+        AgentLog.info(AGENT, "Probes instrumented ahead of time, options %s", options);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> AgentLog.flush(1000), "SwingAgent log flush"));
+        ProbeLinker.configure(options);
+        configureProbes(options);
+        try {
+            ComponentHooks.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error registering component hooks", ex);
         }
     }
 
-    private static boolean isNotEventDispatchThread() {
-        // just simple !javax.swing.SwingUtilities.isEventDispatchThread()
-        // is ot enough because in case we change event queue
-        // the event thread is changed and the single remaining sign
-        // is the thread name started by AWT-EventQueue
+    /** estimated number of EDT violations, scaled up for violations not reported because of the probe mode */
+    public static long getEstimatedViolationCount() {
+        return ProbeSampler.getEstimatedViolations();
+    }
 
-        String name = Thread.currentThread().getName();
-        if(name != null && name.startsWith("AWT-EventQueue")) {
-            return false;
-        } else {
-            return true;
-        }
+    /** EDT violations grouped by call site, most frequent first */
+    public static String getViolationSummary() {
+        return ViolationIndex.summary();
     }
 
-    public static void threadSafeCheckEDT() {
-        if(!SwingUtilities.isEventDispatchThread()) {
-            // if we are not in EDT then memorise this thread
-            // so that eliminate subsequent call checkings
-            Integer entries = threadMarks.get(Thread.currentThread());
-            if(entries == null) {
-                entries = 1;
-                // in difference with checkEDT() we don't
-                // notify listener because method is considered thread safe
-                // and all internal calls to non thread safe methods are legal
-            }
-            threadMarks.put(Thread.currentThread(), entries + 1);
-        }
+    /** time spent transforming classes, slowest first, see the {@code timeline} agent option */
+    public static String getTransformReport() {
+        Supplier<String> report = transformReport;
+        return report != null ? report.get() : "transform timeline disabled";
     }
 
+    public static boolean isInstrumented() {
+        return instrumented;
+    }
 
-    /** Removes thread mark for this call */
-    public static void finalizeCheckEDT() {
-        if (!SwingUtilities.isEventDispatchThread()) {
-            Integer entries = threadMarks.get(Thread.currentThread());
-            if (entries != null) {
-                entries = entries - 1;
-                if (entries == 1) {
-                    threadMarks.remove(Thread.currentThread());
-                } else {
-                    threadMarks.put(Thread.currentThread(), entries);
-                }
-            }
+    /** replaces the listener set before, problems found before any listener was added are delivered to it */
+    public static void setProblemListener(ProblemListener _violationHandler) {
+        if(problemListener != null) {
+            ProblemDispatcher.removeListener(problemListener);
+        }
+        problemListener = _violationHandler;
+        if(problemListener != null) {
+            ProblemDispatcher.addListener(problemListener, problem -> true);
         }
     }
 
-    public static void processContainer_addImpl(Component component) {
-        if (component instanceof JButton) {
-            JButton button = (JButton) component;
-            button.addActionListener(e -> {
-                System.out.printf("Button '%s' clicked from Agent!%n", ((JButton) component).getText());
-            });
+    /**
+     * Adds a listener receiving the problems accepted by the filter. Listeners are called
+     * on the dispatcher thread, one problem at a time.
+     */
+    public static void addProblemListener(ProblemListener listener, Predicate<Problem> filter) {
+        ProblemDispatcher.addListener(listener, filter);
+    }
 
-            System.out.println("Inserted a new button: " + ((JButton) component).getText());
+    public static void removeProblemListener(ProblemListener listener) {
+        ProblemDispatcher.removeListener(listener);
+        if(problemListener == listener) {
+            problemListener = null;
         }
-
-        StackTraceElement[] stackTrace = Thread.currentThread().getStackTrace();
-
-        // remove 2 last elements from stack trace
-        StackTraceElement[] newStackTrace = new StackTraceElement[stackTrace.length - 2];
-        System.arraycopy(stackTrace, 2, newStackTrace, 0, newStackTrace.length);
-
-        componentAddImplStackTraces.put(component, newStackTrace);
     }
 
-    public static StackTraceElement[] getAddImplStackTrace(Component component) {
-        return componentAddImplStackTraces.get(component);
+    public static long getEnqueuedProblemCount() {
+        return ProblemDispatcher.getEnqueued();
     }
 
-    static class Transformer implements ClassFileTransformer {
+    /** problems lost because the dispatch queue was full */
+    public static long getDroppedProblemCount() {
+        return ProblemDispatcher.getDropped();
+    }
 
-        boolean first = true;
+    public static long getDeliveredProblemCount() {
+        return ProblemDispatcher.getDelivered();
+    }
 
-        @Override
-        public byte[] transform(ClassLoader loader,
-                                String className,
-                                Class<?> redefiningClass,
-                                ProtectionDomain domain, byte[] bytes) throws IllegalClassFormatException {
+    private static void notifyProblemListener(StackCapture.Location location, long estimatedCount) {
+        // a call site already reported is only counted
+        if(!ViolationIndex.record(location, estimatedCount)) {
+            return;
+        }
+        if(!ProblemDispatcher.hasListeners() && !monitorEDTViolations) {
+            return;
+        }
 
-            className = className.replace("/", ".");
+        // only the frames near the violation are captured, the description is built when needed
+        Problem problem = Problem.violation(Thread.currentThread().getName(), StackCapture.capture(), estimatedCount);
+        ProblemDispatcher.dispatch(problem);
+    }
 
-            // instrumenting java.awt.Container.addImpl
-            try {
-                if(className.equals("java.awt.Container")) {
-                    System.out.printf("[SwingAgent] Tansforming %s%n", className);
-                    CtClass ctClass = pool.get(className);
-                    CtMethod m = ctClass.getDeclaredMethod("addImpl");
-                    m.insertBefore("{org.example.SwingAgent.processContainer_addImpl($1);}");
-                    return ctClass.toBytecode();
-                }
-            } catch(Exception ex) {
-                error("Error instrumenting class: " + className);
-                if(first) {
-                    error(ex);
-                    first = false;
+    /** performs checking if we are in the EDT */
+    public static void checkEDT() {
+        if(!probesEnabled) {
+            return;
+        }
+        if(isNotEventDispatchThread()) {
+            if(AgentMetrics.counting) {
+                AgentMetrics.checkOffEdt.increment();
+            }
+            // if we are not in EDT then memorise this thread
+            // so that eliminate subsequent call checkings
+            ThreadMark mark = currentMark();
+            if(mark.depth++ == 0) {
+                // the stack is walked once, for the class budget of the probe mode and the call site
+                StackCapture.Location location = ProbeSampler.budgetsByClass() ? StackCapture.locate() : null;
+                long weight = ProbeSampler.sample(mark, location);
+                if(weight > 0) {
+                    notifyProblemListener(location != null ? location : StackCapture.locate(), weight);
                 }
             }
+        } else if(AgentMetrics.counting) {
+            AgentMetrics.checkOnEdt.increment();
+        }
+    }
 
-            // exclude javassist classes non-swing classes
-            if(!className.startsWith("javax.swing") ||className.startsWith("javassist")) {
-                return bytes;
-            }
+    // the mark of this thread, reset if it was left while the probes were switched
+    private static ThreadMark currentMark() {
+        ThreadMark mark = threadMarks.get();
+        int generation = probeGeneration;
+        if(mark.generation != generation) {
+            mark.generation = generation;
+            mark.depth = mark.baseDepth;
+        }
+        return mark;
+    }
 
-            try {
-                CtClass ctClass = pool.get(className);
-
-                if(extendsJComponent(ctClass)) {
-
-                    // insert EDT check into constructor
-                    CtConstructor[] ctors = ctClass.getDeclaredConstructors();
-                    for(CtConstructor constr : ctors) {
-                        try {
-                            constr.insertBefore("{org.example.SwingAgent.checkEDT();}");
-                        } catch(Exception ex) {
-                            if(first) {
-                                error(ex);
-                                first = false;
-                            }
-                            error("Error instrumenting constructor: " + ctClass.getName() + " " + constr.getName() + constr.getSignature());
-                        }
-                    }
+    private static boolean isNotEventDispatchThread() {
+        // just simple !javax.swing.SwingUtilities.isEventDispatchThread()
+        // is not enough because in case we change event queue
+        // the event thread is changed, so the dispatch thread is
+        // tracked by hooks in java.awt.EventQueue instead
+        return !DispatchThreadCache.isDispatchThread();
+    }
 
-                    // insert EDT check into non-thread safe methods
-                    CtMethod[] methods = ctClass.getDeclaredMethods();
-                    for(CtMethod m : methods) {
-                        try {
-                            if(isThreadSafeMethod(m)) {
-                                m.insertBefore("{org.example.SwingAgent.threadSafeCheckEDT();}");
-                            } else {
-                                m.insertBefore("{org.example.SwingAgent.checkEDT();}");
-                            }
-                            m.insertAfter("{org.example.SwingAgent.finalizeCheckEDT();}", true);
-                        } catch(Exception ex) {
-                            error("Error instrumenting method: " + ctClass.getName() + " " + m.getName() + m.getSignature());
-                            if(first) {
-                                error(ex);
-                                first = false;
-                            }
-                        }
-                    }
-                    debug("Instrumented: " + ctClass.getName());
-                    return ctClass.toBytecode();
-                } else {
-                    debug("NOT instrumented: " + ctClass.getName());
-                }
-            } catch (Exception e) {
-                error("Error instrumenting class: " + className);
-                if(first) {
-                    error(e);
-                    first = false;
-                }
+    public static void threadSafeCheckEDT() {
+        if(!probesEnabled) {
+            return;
+        }
+        if(isNotEventDispatchThread()) {
+            if(AgentMetrics.counting) {
+                AgentMetrics.threadSafeOffEdt.increment();
             }
-            return bytes;
+            // in difference with checkEDT() we don't
+            // notify listener because method is considered thread safe
+            // and all internal calls to non thread safe methods are legal
+            currentMark().depth++;
+        } else if(AgentMetrics.counting) {
+            AgentMetrics.threadSafeOnEdt.increment();
         }
     }
 
-    // determines if class is JComponent or derived
-    static boolean extendsJComponent(CtClass ctClass) throws Exception{
-        if(ctClass == null) {
-            return false;
-        }
-        if("javax.swing.JComponent".equals(ctClass.getName())) {
-            return true;
+
+    /** Removes thread mark for this call */
+    public static void finalizeCheckEDT() {
+        if(!probesEnabled) {
+            return;
         }
-        try {
-            return extendsJComponent(ctClass.getSuperclass());
-        } catch (NotFoundException e) {
-            throw new Exception(e);
+        if (isNotEventDispatchThread()) {
+            if(AgentMetrics.counting) {
+                AgentMetrics.finalizeOffEdt.increment();
+            }
+            ThreadMark mark = threadMarks.get();
+            if (mark.depth > 0) {
+                mark.depth--;
+            }
+        } else if(AgentMetrics.counting) {
+            AgentMetrics.finalizeOnEdt.increment();
         }
     }
 
-    // determines if it is Swing's thread-safe method
-    static boolean isThreadSafeMethod(CtMethod m) {
-        String strMethod = m.getName() + m.getSignature();
-        String name = m.getName();
+    public static void processContainer_addImpl(Component component) {
+        ComponentHooks.componentAdded(component);
 
-        return
-                strMethod.equals("repaint()V") ||
-                        strMethod.equals("repaint(JIIII)V") ||
-                        strMethod.equals("repaint(Ljava/awt/Rectangle;)V") ||
-                        strMethod.equals("repaint(IIII)V") ||
-                        strMethod.equals("revalidate()V") ||
-                        //strMethod.equals("invalidate()V") || /* removed by Alex's request */
-                        strMethod.equals("imageUpdate(Ljava/awt/Image;IIIII)Z") ||
-                        strMethod.equals("getListeners(Ljava/lang/Class;)[Ljava/util/EventListener;") ||
-                        name.startsWith("add") && name.endsWith("Listener") ||
-                        name.startsWith("remove") && name.endsWith("Listener");
+        // keeps the stack trace of the addition, starting at Container.addImpl
+        AddImplTraces.record(component);
     }
 
-    static void debug(String string) {
-//		System.out.println("[instrumentation][debug] " + string);
+    /** @return where the component was added to its container, or null if no trace was kept */
+    public static StackTraceElement[] getAddImplStackTrace(Component component) {
+        return AddImplTraces.get(component);
     }
 
-    static void error(String string) {
-//		System.out.println("[instrumentation][error] " + string);
+    /**
+     * Per-thread nesting depth of instrumented calls made outside of the EDT.
+     * Only the owning thread reads and writes it, so no synchronization is needed,
+     * and the mark is reclaimed together with its thread.
+     */
+    static final class ThreadMark {
+        int depth;
+        // violations left until the next sampled one, 0 before the first violation
+        int sampleCountdown;
+        // probeGeneration when depth was last reset, and the depth it is reset to
+        int generation;
+        int baseDepth;
     }
 
-    static void error(Exception ex) {
-//		System.out.print("[instrumentation][error] ");
-//		ex.printStackTrace(System.out);
-    }
 
 //    public static int buttonCount = 0;
 //
@@ -0,0 +1,59 @@
+package org.example;
+
+/**
+ * Activity of the agent, registered as {@code org.example:type=SwingAgentMetrics}.
+ *
+ * Counters only grow, so rates are the difference between two reads.
+ */
+public interface SwingAgentMetricsMXBean {
+
+    /** {@code checkEDT} probes run on the event dispatch thread */
+    long getCheckEdtOnEdt();
+
+    /** {@code checkEDT} probes run on other threads, the calls which may violate */
+    long getCheckEdtOffEdt();
+
+    long getThreadSafeCheckEdtOnEdt();
+
+    long getThreadSafeCheckEdtOffEdt();
+
+    long getFinalizeCheckEdtOnEdt();
+
+    long getFinalizeCheckEdtOffEdt();
+
+    /** all probes run, the sum of the counters above */
+    long getProbeInvocations();
+
+    /** violations reported to the listeners, see the probe mode */
+    long getViolationsReported();
+
+    /** violations found, including those the probe mode did not report */
+    long getViolationsEstimated();
+
+    /** problems waiting for delivery to the listeners */
+    int getProblemBacklog();
+
+    /** problems lost because the dispatch queue was full */
+    long getProblemsDropped();
+
+    /** components with a kept {@code Container.addImpl} stack trace */
+    int getAddImplStackTraces();
+
+    /** classes given new bytecode by the transformer, from the cache or instrumented */
+    long getClassesInstrumented();
+
+    /** classes passed to the transformer and left unchanged */
+    long getClassesSkipped();
+
+    /** classes which could not be instrumented */
+    long getClassesFailed();
+
+    /** methods left without probe by the method analysis, see {@code analysis} */
+    long getProbesAvoided();
+
+    /** methods given a thread-safe probe instead of a normal one by the method analysis */
+    long getProbesDowngraded();
+
+    /** time spent transforming classes, see the {@code timeline} agent option */
+    String transformReport();
+}
@@ -0,0 +1,166 @@
+package org.example;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * EDT violations grouped by call site: the Swing method entered off the EDT and the
+ * first frame outside Swing that called it.
+ *
+ * Only the first violation of a site is reported with a full stack trace, later ones
+ * are counted. {@link #summary()} lists the sites, most frequent first.
+ */
+class ViolationIndex {
+
+    // thread names kept for each site, further threads are only noted
+    private static final int MAX_THREAD_NAMES = 8;
+
+    static int maxSites = 10000;
+
+    private static final ConcurrentHashMap<Site, Entry> sites = new ConcurrentHashMap<>();
+
+    // violations of sites beyond maxSites
+    private static final LongAdder overflow = new LongAdder();
+
+    /**
+     * Counts a violation of the calling thread.
+     *
+     * @param location where the violation happened
+     * @param weight number of violations it stands for
+     * @return true for the first violation of its call site
+     */
+    static boolean record(StackCapture.Location location, long weight) {
+        Site site = new Site(location.probed, location.caller);
+        Entry entry = sites.get(site);
+        boolean first = false;
+        if(entry == null) {
+            if(sites.size() >= maxSites) {
+                overflow.add(weight);
+                return false;
+            }
+            Entry created = new Entry(System.currentTimeMillis());
+            entry = sites.putIfAbsent(site, created);
+            if(entry == null) {
+                entry = created;
+                first = true;
+            }
+        }
+        entry.seen(Thread.currentThread().getName(), weight);
+        return first;
+    }
+
+    static int size() {
+        return sites.size();
+    }
+
+    static void clear() {
+        sites.clear();
+        overflow.reset();
+    }
+
+    /** call sites with their counts, most frequent first */
+    static String summary() {
+        List<Map.Entry<Site, Entry>> list = new ArrayList<>(sites.entrySet());
+        list.sort(Comparator.comparingLong((Map.Entry<Site, Entry> e) -> e.getValue().count.sum()).reversed());
+        StringBuilder buf = new StringBuilder();
+        buf.append(String.format("EDT violations at %d call sites:%n", list.size()));
+        for(Map.Entry<Site, Entry> e : list) {
+            Entry entry = e.getValue();
+            buf.append(String.format("%10d  %s  threads %s  first seen %tT, last seen %tT%n",
+                    entry.count.sum(), e.getKey(), entry.threadNames(), entry.firstSeen, entry.lastSeen));
+        }
+        if(overflow.sum() > 0) {
+            buf.append(String.format("%10d  at further call sites%n", overflow.sum()));
+        }
+        return buf.toString();
+    }
+
+    static final class Site {
+        final String swingClass;
+        final String swingMethod;
+        final String callerClass;
+        final String callerMethod;
+        final String callerFile;
+        final int callerLine;
+        private final int hash;
+
+        Site(StackWalker.StackFrame swing, StackWalker.StackFrame caller) {
+            swingClass = swing == null ? "?" : swing.getClassName();
+            swingMethod = swing == null ? "?" : swing.getMethodName();
+            callerClass = caller == null ? null : caller.getClassName();
+            callerMethod = caller == null ? null : caller.getMethodName();
+            callerFile = caller == null ? null : caller.getFileName();
+            callerLine = caller == null ? -1 : caller.getLineNumber();
+            int h = swingClass.hashCode() * 31 + swingMethod.hashCode();
+            if(caller != null) {
+                h = (h * 31 + callerClass.hashCode()) * 31 + callerMethod.hashCode();
+                h = h * 31 + callerLine;
+            }
+            hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            if(!(o instanceof Site)) {
+                return false;
+            }
+            Site other = (Site) o;
+            return hash == other.hash && callerLine == other.callerLine
+                    && swingClass.equals(other.swingClass) && swingMethod.equals(other.swingMethod)
+                    && Objects.equals(callerClass, other.callerClass)
+                    && Objects.equals(callerMethod, other.callerMethod);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            String swing = swingClass + "." + swingMethod;
+            if(callerClass == null) {
+                return swing;
+            }
+            return swing + " called from " + new StackTraceElement(callerClass, callerMethod, callerFile, callerLine);
+        }
+    }
+
+    static final class Entry {
+        final LongAdder count = new LongAdder();
+        final long firstSeen;
+        volatile long lastSeen;
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        volatile boolean moreThreads;
+
+        Entry(long firstSeen) {
+            this.firstSeen = firstSeen;
+            this.lastSeen = firstSeen;
+        }
+
+        void seen(String threadName, long weight) {
+            count.add(weight);
+            lastSeen = System.currentTimeMillis();
+            if(!threads.contains(threadName)) {
+                if(threads.size() < MAX_THREAD_NAMES) {
+                    threads.add(threadName);
+                } else {
+                    moreThreads = true;
+                }
+            }
+        }
+
+        String threadNames() {
+            return moreThreads ? threads + " and others" : threads.toString();
+        }
+    }
+}
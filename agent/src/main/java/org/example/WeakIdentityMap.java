@@ -0,0 +1,102 @@
+package org.example;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map holding its keys weakly and comparing them by identity, so that
+ * components overriding {@code equals} or being collected do not confuse it.
+ * Entries of collected keys are purged on the next write.
+ */
+public class WeakIdentityMap<K, V> {
+
+    private final ConcurrentHashMap<Object, V> map = new ConcurrentHashMap<>();
+    private final ReferenceQueue<K> queue = new ReferenceQueue<>();
+
+    public V get(K key) {
+        return map.get(new LookupKey(key));
+    }
+
+    public V put(K key, V value) {
+        purge();
+        return map.put(new WeakKey<>(key, queue), value);
+    }
+
+    public V putIfAbsent(K key, V value) {
+        purge();
+        return map.putIfAbsent(new WeakKey<>(key, queue), value);
+    }
+
+    public V remove(K key) {
+        purge();
+        return map.remove(new LookupKey(key));
+    }
+
+    /** values of the live keys, and of collected keys not purged yet */
+    public Collection<V> values() {
+        purge();
+        return map.values();
+    }
+
+    public int size() {
+        purge();
+        return map.size();
+    }
+
+    private void purge() {
+        for(Reference<? extends K> ref; (ref = queue.poll()) != null; ) {
+            map.remove(ref);
+        }
+    }
+
+    private static final class WeakKey<K> extends WeakReference<K> {
+        private final int hash;
+
+        WeakKey(K key, ReferenceQueue<K> queue) {
+            super(key, queue);
+            hash = System.identityHashCode(key);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+            Object key = get();
+            if(key == null) {
+                return false;
+            }
+            if(o instanceof WeakKey) {
+                return ((WeakKey<?>) o).get() == key;
+            }
+            return o instanceof LookupKey && ((LookupKey) o).key == key;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // short-lived key for lookups, saves registering a reference
+    private static final class LookupKey {
+        private final Object key;
+
+        LookupKey(Object key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof WeakKey ? ((WeakKey<?>) o).get() == key : o instanceof LookupKey && ((LookupKey) o).key == key;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(key);
+        }
+    }
+}
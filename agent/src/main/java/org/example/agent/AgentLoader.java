@@ -0,0 +1,35 @@
+package org.example.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+import java.io.File;
+
+/**
+ * Attaches the agent to a running VM:
+ * <pre>
+ *   java -cp agent.jar org.example.agent.AgentLoader                  lists the running VMs
+ *   java -cp agent.jar org.example.agent.AgentLoader pid [options]    attaches with agent options
+ *   java -cp agent.jar org.example.agent.AgentLoader pid detach       removes the agent again
+ * </pre>
+ */
+public class AgentLoader {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length == 0) {
+            System.out.println("Usage: AgentLoader <pid> [agent options | detach]");
+            for(VirtualMachineDescriptor descriptor : VirtualMachine.list()) {
+                System.out.printf("%8s  %s%n", descriptor.id(), descriptor.displayName());
+            }
+            return;
+        }
+        String agentJar = new File(AgentLoader.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try {
+            vm.loadAgent(agentJar, args.length > 1 ? args[1] : "");
+        } finally {
+            vm.detach();
+        }
+        System.out.printf("%s %s to %s%n", agentJar, args.length > 1 && args[1].equals("detach") ? "detached from" : "attached", args[0]);
+    }
+}
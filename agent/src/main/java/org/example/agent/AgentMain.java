@@ -0,0 +1,315 @@
+package org.example.agent;
+
+import org.example.AgentLog;
+import org.example.AgentMetrics;
+import org.example.AgentOptions;
+import org.example.ComponentHooks;
+import org.example.DispatchThreadCache;
+import org.example.ProbeLinker;
+import org.example.ProbeRuntime;
+import org.example.SwingAgent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.ProtectionDomain;
+
+import static org.example.AgentLog.Category.AGENT;
+import static org.example.AgentLog.Category.TRANSFORM;
+
+/**
+ * Entry point of the agent: adds the transformer which inserts the probes.
+ *
+ * The agent classes and Javassist stay on the system class path. Only the probe
+ * runtime, the {@code org.example} package the probes call, is on the boot class path
+ * ({@code Boot-Class-Path} names the probe runtime jar), so instrumented JDK classes
+ * reach it.
+ */
+public class AgentMain {
+
+    // instrumented bytecode kept between runs, null when disabled
+    static BytecodeCache bytecodeCache;
+
+    // which classes and methods get probes, replaced by LiveConfiguration
+    static volatile ProbeRules rules = ProbeRules.defaults();
+
+    // features which can be switched off at runtime, see LiveConfiguration
+    static volatile boolean edtChecks = true;
+    static volatile boolean addImplProbe = true;
+
+    // false once the configuration changed at runtime, the cache then no longer matches it
+    static volatile boolean bytecodeCurrent = true;
+
+    // set while the agent is attached
+    static Instrumentation instrumentation;
+    static Transformer transformer;
+
+    public static void premain(String agentArguments, Instrumentation instrumentation) {
+        if(probeRuntimeMissing()) {
+            return;
+        }
+        ProbeRuntime.agentStarting();
+        start(AgentOptions.parse(agentArguments), instrumentation);
+    }
+
+    /**
+     * Entry point when the agent is attached to a running VM (see {@link AgentLoader}).
+     * Classes loaded before are retransformed in the background. With the {@code detach}
+     * argument the agent is removed again.
+     */
+    public static void agentmain(String agentArguments, Instrumentation instrumentation) {
+        if(probeRuntimeMissing()) {
+            return;
+        }
+        ProbeRuntime.agentStarting();
+        AgentOptions options = AgentOptions.parse(agentArguments);
+        if(options.getBoolean("detach", false)) {
+            detach();
+            return;
+        }
+        if(transformer != null) {
+            AgentLog.warn(AGENT, "Agent is attached already");
+            return;
+        }
+        if(AgentMain.instrumentation == null) {
+            start(options, instrumentation);
+        } else {
+            // attached again after a detach, the options of the first attach stay in effect
+            AgentMain.instrumentation = instrumentation;
+            transformer = new Transformer();
+            instrumentation.addTransformer(transformer, true);
+            SwingAgent.agentAttached(AgentMain::transformReport, AgentMain::detach);
+        }
+        AgentLog.info(AGENT, "Retransforming loaded classes");
+        ProbeRules current = rules;
+        Retransformer.submit(instrumentation, () -> Retransformer.candidates(instrumentation, current), "Attach", DispatchThreadCache::reset);
+    }
+
+    // the instrumented JDK classes can only call the probes when the boot loader defines them
+    private static boolean probeRuntimeMissing() {
+        if(ProbeRuntime.class.getClassLoader() == null) {
+            return false;
+        }
+        System.err.println("[SwingAgent] The probe runtime jar is not on the boot class path, the agent is not started."
+                + " Keep it next to the agent jar under the name given by Boot-Class-Path.");
+        return true;
+    }
+
+    /** removes the transformer and restores the original bytecode of the instrumented classes */
+    static synchronized void detach() {
+        if(transformer == null) {
+            return;
+        }
+        instrumentation.removeTransformer(transformer);
+        transformer = null;
+        SwingAgent.agentDetached();
+        AgentLog.info(AGENT, "Detaching, restoring instrumented classes");
+        ProbeRules current = rules;
+        Retransformer.submit(instrumentation, () -> Retransformer.candidates(instrumentation, current), "Detach", null);
+    }
+
+    private static synchronized void start(AgentOptions options, Instrumentation instrumentation) {
+        AgentMain.instrumentation = instrumentation;
+        try {
+            AgentLog.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading log options, logging to the console", ex);
+        }
+        AgentLog.info(AGENT, "Agent started with options %s", options);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> AgentLog.flush(1000), "SwingAgent log flush"));
+        DispatchThreadCache.install(instrumentation);
+        HierarchyIndex.seed(instrumentation.getAllLoadedClasses());
+        try {
+            rules = ProbeRules.compile(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading probe rules, using the defaults", ex);
+        }
+        ProbeLinker.configure(options);
+        try {
+            LiveConfiguration.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error reading control options", ex);
+        }
+        openBytecodeCache(options);
+        if(options.getBoolean("hierarchy.stats", false)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.printf("[SwingAgent] %s%n", HierarchyIndex.statistics()), "SwingAgent hierarchy statistics"));
+        }
+        SwingAgent.configureProbes(options);
+        Retransformer.configure(options);
+        TransformTimeline.configure(options);
+        MethodAnalysis.configure(options);
+        // Javassist reads class files through the default file system and the runtime image;
+        // started here, they cannot be initialized by an agent thread while a class initializer
+        // waits for the transformer, which deadlocks
+        FileSystems.getDefault();
+        ClassLoader.getSystemResource("java/lang/Object.class");
+        EagerInstrumenter.start(options, rules);
+        // retransformation capable, so that the agent can be detached again
+        transformer = new Transformer();
+        instrumentation.addTransformer(transformer, true);
+        // hooks refer to Swing classes, which must be loaded after the transformer is added
+        try {
+            ComponentHooks.configure(options);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error registering component hooks", ex);
+        }
+        SwingAgent.agentAttached(AgentMain::transformReport, AgentMain::detach);
+    }
+
+    private static String transformReport() {
+        return TransformTimeline.enabled ? TransformTimeline.report() : "transform timeline disabled";
+    }
+
+    // cache=<file> or cache=true for the default location, cache.maxSize, cache.stats
+    private static void openBytecodeCache(AgentOptions options) {
+        String location = options.get("cache", "false");
+        if(location.equals("false")) {
+            return;
+        }
+        Path file = location.equals("true")
+                ? Paths.get(System.getProperty("user.home"), ".swingagent", "bytecode.cache")
+                : Paths.get(location);
+        try {
+            bytecodeCache = BytecodeCache.open(file, options.getSize("cache.maxSize", 64L << 20),
+                    options.instrumentationSettings() + rules);
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error opening bytecode cache: %s", file, ex);
+            return;
+        }
+        boolean stats = options.getBoolean("cache.stats", false);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            bytecodeCache.close();
+            if(stats) {
+                System.out.printf("[SwingAgent] %s%n", bytecodeCache);
+            }
+        }, "SwingAgent bytecode cache"));
+    }
+
+    static class Transformer implements ClassFileTransformer {
+
+        boolean first = true;
+
+        // created on the first cache miss, so a warm start does not load Javassist
+        ClassInstrumenter instrumenter;
+
+        @Override
+        public byte[] transform(ClassLoader loader,
+                                String className,
+                                Class<?> redefiningClass,
+                                ProtectionDomain domain, byte[] bytes) throws IllegalClassFormatException {
+            if(AgentMetrics.counting) {
+                AgentMetrics.classesSeen.increment();
+            }
+            TransformTimeline.Record timing = TransformTimeline.enabled ? new TransformTimeline.Record(className) : null;
+            byte[] result = transformClass(loader, className, bytes, timing);
+            if(result != null) {
+                if(AgentMetrics.counting) {
+                    AgentMetrics.classesInstrumented.increment();
+                }
+            }
+            if(timing != null) {
+                TransformTimeline.finish(timing, result);
+            }
+            return result;
+        }
+
+        private byte[] transformClass(ClassLoader loader, String className, byte[] bytes, TransformTimeline.Record timing) {
+            // one snapshot, the rules may be replaced while the class is transformed
+            ProbeRules rules = AgentMain.rules;
+
+            // rejects classes which can never be instrumented without allocating
+            int kind = className == null || ClassFileFilter.isAgentClass(loader, className)
+                    ? ClassFileFilter.REJECT : ClassFileFilter.classify(rules, className, bytes);
+            if(kind == ClassFileFilter.REJECT || kind == ClassFileFilter.CONTAINER && !addImplProbe) {
+                return null;
+            }
+
+            if(timing != null) {
+                timing.examined = true;
+            }
+
+            String name = className.replace('/', '.');
+            Boolean component = null;
+            if(kind == ClassFileFilter.INCLUDED) {
+                component = Boolean.TRUE;
+            } else if(kind == ClassFileFilter.CANDIDATE) {
+                long phase = System.nanoTime();
+                // answered without Javassist when the superclass has been seen before
+                component = name.equals(HierarchyIndex.JCOMPONENT)
+                        ? Boolean.TRUE
+                        : HierarchyIndex.extendsJComponent(loader, ClassFileFilter.superclassName(bytes));
+                if(component != null) {
+                    HierarchyIndex.record(loader, name, component);
+                }
+                if(timing != null) {
+                    timing.hierarchyNanos = System.nanoTime() - phase;
+                }
+                if(component == Boolean.FALSE) {
+                    return null;
+                }
+            }
+            if(!edtChecks && (kind == ClassFileFilter.CANDIDATE || kind == ClassFileFilter.INCLUDED)) {
+                return null;
+            }
+
+            if(EagerInstrumenter.active && bytecodeCurrent) {
+                byte[] eager = EagerInstrumenter.lookup(loader, name, bytes);
+                if(eager != null) {
+                    if(kind == ClassFileFilter.CANDIDATE && component == null) {
+                        HierarchyIndex.record(loader, name, true);
+                    }
+                    if(timing != null) {
+                        timing.outcome = "eager";
+                    }
+                    return eager == EagerInstrumenter.UNCHANGED ? null : eager;
+                }
+            }
+
+            BytecodeCache cache = bytecodeCurrent ? bytecodeCache : null;
+            BytecodeCache.Key key = null;
+            if(cache != null) {
+                key = cache.keyOf(className, bytes);
+                byte[] cached = cache.get(key);
+                if(cached == BytecodeCache.UNCHANGED) {
+                    return null;
+                } else if(cached != null) {
+                    if(kind == ClassFileFilter.CANDIDATE && component == null) {
+                        HierarchyIndex.record(loader, name, true);
+                    }
+                    if(timing != null) {
+                        timing.outcome = "cached";
+                    }
+                    return cached;
+                }
+            }
+
+            try {
+                ClassInstrumenter current = instrumenter;
+                if(current == null || current.rules != rules) {
+                    current = new ClassInstrumenter(rules);
+                    instrumenter = current;
+                }
+                byte[] result = current.instrument(loader, name, bytes, component, timing);
+                if(cache != null) {
+                    cache.put(key, result == null ? BytecodeCache.UNCHANGED : result);
+                }
+                return result;
+            } catch (Exception e) {
+                if(AgentMetrics.counting) {
+                    AgentMetrics.classesFailed.increment();
+                }
+                AgentLog.error(TRANSFORM, "Error instrumenting class: %s", className, first ? e : null);
+                first = false;
+                if(timing != null) {
+                    timing.outcome = "failed";
+                    timing.failed("class", e);
+                }
+            }
+            return null;
+        }
+    }
+}
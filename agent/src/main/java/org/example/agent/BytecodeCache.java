@@ -0,0 +1,406 @@
+package org.example.agent;
+
+import org.example.AgentLog;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent cache of instrumented classes, so that a warm start can skip Javassist.
+ *
+ * Entries are keyed by a SHA-256 digest of the agent version, the instrumentation
+ * settings, the class name and the original classfile bytes. The file is append-only:
+ * <pre>
+ *   header: int magic, int format
+ *   record: int magic, int length, byte[32] key, int crc, byte[length] payload
+ * </pre>
+ * An empty payload records a class which is left unchanged. Loading stops at the first
+ * malformed record and every payload is checked with CRC32 before it is returned.
+ * Existing records are read from a memory-mapped view of the file; new ones are
+ * appended with a single write.
+ *
+ * Only the JVM holding the lock file writes; other JVMs use the cache read only.
+ * When the file reaches its size limit new entries are dropped, and on close the file is
+ * rewritten with the entries used by this run and atomically replaced, which leaves
+ * room for the rest of the working set on the next run.
+ */
+class BytecodeCache {
+
+    private static final int MAGIC = 0x53574143;
+    private static final int RECORD_MAGIC = 0x52454331;
+    private static final int FORMAT = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int KEY_SIZE = 32;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + KEY_SIZE + 4;
+
+    /** returned by {@link #get} for classes which are not changed by the agent */
+    static final byte[] UNCHANGED = new byte[0];
+
+    private final Path file;
+    private final long maxSize;
+    private final MessageDigest keyPrefix;
+
+    private FileChannel lockChannel;
+    private FileChannel channel;
+    private MappedByteBuffer mapped;
+    private long fileSize;
+    private boolean full;
+
+    // key -> position of the record in the file
+    private final Map<Key, Long> index = new HashMap<>();
+    // entries looked up or stored by this run, survive eviction
+    private final Set<Key> used = new HashSet<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong stores = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong corruptions = new AtomicLong();
+
+    private BytecodeCache(Path file, long maxSize, MessageDigest keyPrefix) {
+        this.file = file;
+        this.maxSize = maxSize;
+        this.keyPrefix = keyPrefix;
+    }
+
+    static BytecodeCache open(Path file, long maxSize, String settings) throws IOException {
+        // positions in the mapped file are ints
+        if(maxSize > Integer.MAX_VALUE) {
+            throw new IOException("Cache size limit must be below 2g: " + maxSize);
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        digest.update((agentVersion() + '\0' + settings + '\0').getBytes(StandardCharsets.UTF_8));
+
+        BytecodeCache cache = new BytecodeCache(file, maxSize, digest);
+        cache.load();
+        return cache;
+    }
+
+    /**
+     * Identifies the agent build. The implementation version alone does not change
+     * between snapshot builds, so the checksum of the classes producing the probes is added.
+     */
+    static String agentVersion() {
+        String version = AgentMain.class.getPackage().getImplementationVersion();
+        CRC32 crc = new CRC32();
+        for(String name : new String[] {"ClassInstrumenter", "MethodAnalysis", "ProbeEmitter"}) {
+            try(InputStream in = AgentMain.class.getResourceAsStream(name + ".class")) {
+                if(in != null) {
+                    crc.update(in.readAllBytes());
+                }
+            } catch(IOException e) {
+                AgentLog.error(AgentLog.Category.CACHE, "Cannot read the agent classes for the cache version", e);
+            }
+        }
+        return (version == null ? "dev" : version) + ':' + Long.toHexString(crc.getValue());
+    }
+
+    private void load() throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        if(dir != null) {
+            Files.createDirectories(dir);
+        }
+        lockChannel = FileChannel.open(file.resolveSibling(file.getFileName() + ".lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock = lockChannel.tryLock();
+        if(lock == null) {
+            // another JVM owns the cache, use what is already there
+            lockChannel.close();
+            lockChannel = null;
+        }
+
+        if(Files.exists(file)) {
+            try(FileChannel readChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+                fileSize = readChannel.size();
+                mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+            }
+        }
+        long validSize = scan();
+
+        if(isWritable()) {
+            if(validSize != fileSize) {
+                // damaged or foreign file, keep the valid records only
+                rewrite(false);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if(fileSize == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT);
+                header.flip();
+                channel.write(header, 0);
+                fileSize = HEADER_SIZE;
+            }
+        }
+    }
+
+    // builds the index and returns the size of the valid part of the file
+    private long scan() {
+        if(mapped == null || fileSize < HEADER_SIZE
+                || mapped.getInt(0) != MAGIC || mapped.getInt(4) != FORMAT) {
+            if(fileSize > 0) {
+                corruptions.incrementAndGet();
+            }
+            index.clear();
+            return 0;
+        }
+        long pos = HEADER_SIZE;
+        while(pos + RECORD_HEADER_SIZE <= fileSize) {
+            int p = (int) pos;
+            int length = mapped.getInt(p + 4);
+            if(mapped.getInt(p) != RECORD_MAGIC || length < 0 || pos + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            // payload checksums are verified when an entry is read
+            byte[] key = new byte[KEY_SIZE];
+            mapped.duplicate().position(p + 8).get(key);
+            index.put(new Key(key), pos);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        if(pos != fileSize) {
+            corruptions.incrementAndGet();
+        }
+        return pos;
+    }
+
+    // reads the payload of the record, records appended by this run are not mapped
+    private byte[] readPayload(long recordPos) throws IOException {
+        if(isMapped(recordPos)) {
+            int p = (int) recordPos;
+            byte[] payload = new byte[mapped.getInt(p + 4)];
+            mapped.duplicate().position(p + RECORD_HEADER_SIZE).get(payload);
+            return payload;
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, recordPos);
+        ByteBuffer payload = ByteBuffer.allocate(header.getInt(4));
+        readFully(payload, recordPos + RECORD_HEADER_SIZE);
+        return payload.array();
+    }
+
+    private boolean isMapped(long recordPos) {
+        return mapped != null && recordPos + RECORD_HEADER_SIZE <= mapped.capacity();
+    }
+
+    private void readFully(ByteBuffer buffer, long pos) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer, pos + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file);
+            }
+        }
+    }
+
+    private static int crc(byte[] key, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(key);
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    boolean isWritable() {
+        return lockChannel != null;
+    }
+
+    /** computes the cache key of a class as handed to the transformer */
+    Key keyOf(String className, byte[] bytes) {
+        MessageDigest digest;
+        try {
+            digest = (MessageDigest) keyPrefix.clone();
+        } catch(CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(className.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(bytes);
+        return new Key(digest.digest());
+    }
+
+    /**
+     * @return instrumented bytecode, {@link #UNCHANGED} or null when the class is not cached
+     */
+    synchronized byte[] get(Key key) {
+        byte[] result = null;
+        Long pos = index.get(key);
+        if(pos != null) {
+            try {
+                byte[] payload = readPayload(pos);
+                if(crcAt(pos) == crc(key.digest, payload)) {
+                    result = payload.length == 0 ? UNCHANGED : payload;
+                    used.add(key);
+                } else {
+                    // damaged entry, let it be stored again
+                    corruptions.incrementAndGet();
+                    index.remove(key);
+                }
+            } catch(IOException e) {
+                AgentLog.error(AgentLog.Category.CACHE, "Error reading the bytecode cache", e);
+            }
+        }
+        if(result == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return result;
+    }
+
+    private int crcAt(long recordPos) throws IOException {
+        if(isMapped(recordPos)) {
+            return mapped.getInt((int) recordPos + 8 + KEY_SIZE);
+        }
+        ByteBuffer crc = ByteBuffer.allocate(4);
+        readFully(crc, recordPos + 8 + KEY_SIZE);
+        return crc.getInt(0);
+    }
+
+    /** stores instrumented bytecode, or {@link #UNCHANGED} */
+    synchronized void put(Key key, byte[] bytecode) {
+        if(!isWritable() || index.containsKey(key)) {
+            return;
+        }
+        used.add(key);
+        long recordSize = RECORD_HEADER_SIZE + bytecode.length;
+        try {
+            if(fileSize + recordSize > maxSize) {
+                // entries not used by this run are evicted when the cache is closed
+                full = true;
+                return;
+            }
+            ByteBuffer record = ByteBuffer.allocate((int) recordSize);
+            record.putInt(RECORD_MAGIC).putInt(bytecode.length).put(key.digest).putInt(crc(key.digest, bytecode)).put(bytecode);
+            record.flip();
+            while(record.hasRemaining()) {
+                channel.write(record, fileSize + record.position());
+            }
+            index.put(key, fileSize);
+            fileSize += recordSize;
+            stores.incrementAndGet();
+        } catch(IOException e) {
+            AgentLog.error(AgentLog.Category.CACHE, "Error writing the bytecode cache", e);
+        }
+    }
+
+    /**
+     * Writes a new file and swaps it in. With eviction only the entries used by this run
+     * are kept, otherwise every valid record is copied.
+     */
+    private void rewrite(boolean evict) throws IOException {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        long size = HEADER_SIZE;
+        Map<Key, Long> newIndex = new HashMap<>();
+        try(FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(FORMAT);
+            header.flip();
+            out.write(header);
+            for(Map.Entry<Key, Long> entry : index.entrySet()) {
+                Key key = entry.getKey();
+                if(evict && !used.contains(key)) {
+                    continue;
+                }
+                byte[] payload = readPayload(entry.getValue());
+                if(size + RECORD_HEADER_SIZE + payload.length > maxSize) {
+                    continue;
+                }
+                ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+                record.putInt(RECORD_MAGIC).putInt(payload.length).put(key.digest)
+                        .putInt(crc(key.digest, payload)).put(payload);
+                record.flip();
+                out.write(record);
+                newIndex.put(key, size);
+                size += RECORD_HEADER_SIZE + payload.length;
+            }
+            out.force(false);
+        }
+        if(evict) {
+            evictions.addAndGet(index.size() - newIndex.size());
+        }
+
+        if(channel != null) {
+            channel.close();
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try(FileChannel readChannel = FileChannel.open(file, StandardOpenOption.READ)) {
+            mapped = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        index.clear();
+        index.putAll(newIndex);
+        fileSize = size;
+    }
+
+    /** evicts entries not used by this run if the cache ran full, and releases the file */
+    synchronized void close() {
+        try {
+            if(isWritable()) {
+                if(full) {
+                    rewrite(true);
+                }
+                channel.close();
+                lockChannel.close();
+                lockChannel = null;
+            }
+        } catch(IOException e) {
+            AgentLog.error(AgentLog.Category.CACHE, "Error closing the bytecode cache", e);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    synchronized int size() {
+        return index.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("bytecode cache %s: %d hits, %d misses, %d stored, %d evicted, %d corrupted, %d entries, %d bytes",
+                file, hits.get(), misses.get(), stores.get(), evictions.get(), corruptions.get(), size(), fileSize);
+    }
+
+    static final class Key {
+        final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest) {
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
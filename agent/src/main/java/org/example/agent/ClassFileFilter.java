@@ -0,0 +1,195 @@
+package org.example.agent;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decides from the internal class name and the raw classfile bytes whether a class
+ * has to be looked at by the instrumenter. Rejection allocates nothing: the superclass
+ * name is compared byte by byte in the constant pool.
+ */
+class ClassFileFilter {
+
+    static final int REJECT = 0;
+    static final int CONTAINER = 1;
+    static final int EVENT_QUEUE = 2;
+    /** superclass may extend JComponent, the hierarchy has to be checked */
+    static final int CANDIDATE = 3;
+    /** probed because of an include rule, whatever the superclass */
+    static final int INCLUDED = 4;
+
+    private static final int ACC_INTERFACE = 0x0200;
+    private static final int ACC_MODULE = 0x8000;
+
+    private static final byte[] OBJECT = ascii("java/lang/Object");
+
+    // superclasses in these packages are never components
+    private static final byte[][] REJECTED_SUPER_PACKAGES = {
+            ascii("java/lang/"),
+            ascii("java/util/"),
+            ascii("java/io/"),
+            ascii("java/nio/"),
+            ascii("jdk/internal/"),
+    };
+
+    // the agent; application classes may share the package of the probe runtime, not this one
+    private static final String AGENT_PATH = "org/example/agent/";
+    // the probe runtime, defined by the boot loader
+    private static final String RUNTIME_PATH = "org/example/";
+
+    // constant pool entry offsets, reused by the thread
+    private static final ThreadLocal<int[]> offsets = ThreadLocal.withInitial(() -> new int[1024]);
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    static int classify(ProbeRules rules, String className, byte[] bytes) {
+        if(className == null || bytes == null) {
+            return REJECT;
+        }
+        if(className.startsWith("java/")) {
+            int kind = REJECT;
+            if(className.equals("java/awt/Container")) {
+                kind = CONTAINER;
+            } else if(className.equals("java/awt/EventQueue")) {
+                kind = EVENT_QUEUE;
+            }
+            // no JComponent subclasses in java.*
+            return rules.matchClass(className) == ProbeRules.EXCLUDE ? REJECT : kind;
+        }
+        if(className.startsWith(AGENT_PATH) || className.startsWith("javassist/")) {
+            return REJECT;
+        }
+        switch(rules.matchClass(className)) {
+            case ProbeRules.EXCLUDE:
+                return REJECT;
+            case ProbeRules.INCLUDE:
+                return INCLUDED;
+        }
+        try {
+            return classifyBySuperclass(bytes);
+        } catch(ArrayIndexOutOfBoundsException e) {
+            // malformed class, left to the JVM
+            return REJECT;
+        }
+    }
+
+    /**
+     * Whether the class, given by its internal name and defining loader, belongs to the
+     * agent: its own package, or the probe runtime package defined by the boot loader.
+     */
+    static boolean isAgentClass(ClassLoader loader, String className) {
+        return className.startsWith(AGENT_PATH) || loader == null && className.startsWith(RUNTIME_PATH);
+    }
+
+    private static int classifyBySuperclass(byte[] b) {
+        int[] offs = constantPoolOffsets(b);
+        int pos = offs == null ? -1 : offs[0];
+        if(pos < 0) {
+            return REJECT;
+        }
+
+        int access = u2(b, pos);
+        int superIndex = u2(b, pos + 4);
+        if((access & (ACC_INTERFACE | ACC_MODULE)) != 0 || superIndex == 0) {
+            return REJECT;
+        }
+        int nameOffset = offs[u2(b, offs[superIndex] + 1)];
+        int length = u2(b, nameOffset + 1);
+        int start = nameOffset + 3;
+        if(matches(b, start, length, OBJECT)) {
+            return REJECT;
+        }
+        for(byte[] prefix : REJECTED_SUPER_PACKAGES) {
+            if(startsWith(b, start, length, prefix)) {
+                return REJECT;
+            }
+        }
+        return CANDIDATE;
+    }
+
+    /** reads the superclass of a candidate class as a binary name like {@code javax.swing.JPanel} */
+    static String superclassName(byte[] b) {
+        int[] offs = constantPoolOffsets(b);
+        int pos = offs[0];
+        int nameOffset = offs[u2(b, offs[u2(b, pos + 4)] + 1)];
+        return new String(b, nameOffset + 3, u2(b, nameOffset + 1), StandardCharsets.UTF_8).replace('/', '.');
+    }
+
+    /**
+     * Records the offset of every constant pool entry in a table reused by the thread.
+     * Slot 0 receives the offset following the constant pool, or -1 for malformed classes.
+     */
+    private static int[] constantPoolOffsets(byte[] b) {
+        if(b.length < 10 || u2(b, 0) != 0xCAFE || u2(b, 2) != 0xBABE) {
+            return null;
+        }
+        int count = u2(b, 8);
+        int[] offs = offsets.get();
+        if(offs.length < count) {
+            offs = new int[Math.max(count, offs.length * 2)];
+            offsets.set(offs);
+        }
+
+        int pos = 10;
+        for(int i = 1; i < count; i++) {
+            offs[i] = pos;
+            int tag = b[pos] & 0xFF;
+            switch(tag) {
+                case 1:  // Utf8
+                    pos += 3 + u2(b, pos + 1);
+                    break;
+                case 3:  // Integer
+                case 4:  // Float
+                case 9:  // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    pos += 5;
+                    break;
+                case 5:  // Long
+                case 6:  // Double
+                    pos += 9;
+                    i++;
+                    break;
+                case 7:  // Class
+                case 8:  // String
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    pos += 3;
+                    break;
+                case 15: // MethodHandle
+                    pos += 4;
+                    break;
+                default:
+                    pos = -1;
+                    i = count;
+            }
+        }
+        offs[0] = pos;
+        return offs;
+    }
+
+    private static int u2(byte[] b, int pos) {
+        return ((b[pos] & 0xFF) << 8) | (b[pos + 1] & 0xFF);
+    }
+
+    private static boolean matches(byte[] b, int start, int length, byte[] expected) {
+        return length == expected.length && startsWith(b, start, length, expected);
+    }
+
+    private static boolean startsWith(byte[] b, int start, int length, byte[] prefix) {
+        if(length < prefix.length) {
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++) {
+            if(b[start + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
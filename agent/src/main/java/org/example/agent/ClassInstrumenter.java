@@ -0,0 +1,278 @@
+package org.example.agent;
+
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.CtBehavior;
+import javassist.CtClass;
+import javassist.CtConstructor;
+import javassist.CtMethod;
+import javassist.Modifier;
+import javassist.NotFoundException;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.MethodInfo;
+import javassist.expr.ExprEditor;
+import javassist.expr.MethodCall;
+import org.example.AgentLog;
+
+import java.io.ByteArrayInputStream;
+
+import static org.example.AgentLog.Category.TRANSFORM;
+
+/**
+ * Inserts the agent probes into classes with Javassist. The EDT probes of components are
+ * spliced in by a {@link ProbeEmitter}, the few hooks into AWT are compiled from source.
+ *
+ * Kept apart from {@link AgentMain.Transformer} so that Javassist is only loaded
+ * when a class really has to be instrumented.
+ */
+class ClassInstrumenter {
+
+    boolean first = true;
+
+    final ProbeRules rules;
+
+    // resolves the classes instead of the pools of the defining loaders, for offline use
+    private final ClassPool pool;
+
+    ClassInstrumenter(ProbeRules rules) {
+        this(rules, null);
+    }
+
+    ClassInstrumenter(ProbeRules rules, ClassPool pool) {
+        this.rules = rules;
+        this.pool = pool;
+    }
+
+    /**
+     * Instruments the class given by its classfile bytes.
+     *
+     * @param component whether the class extends JComponent, or null if not known yet
+     * @param timing receives the time of each phase, null when the timeline is off
+     * @return instrumented bytecode or null if the class is left unchanged
+     * @throws Exception if the class could not be instrumented at all
+     */
+    byte[] instrument(ClassLoader loader, String className, byte[] bytes, Boolean component,
+                      TransformTimeline.Record timing) throws Exception {
+        long phase = System.nanoTime();
+        CtClass ctClass = pool != null
+                ? pool.makeClass(new ByteArrayInputStream(bytes), false)
+                : ClassPools.makeClass(loader, bytes);
+        if(timing != null) {
+            timing.parseNanos = System.nanoTime() - phase;
+        }
+        try {
+            // instrumenting java.awt.Container.addImpl
+            if(className.equals("java.awt.Container")) {
+                AgentLog.info(TRANSFORM, "Transforming %s", className);
+                phase = System.nanoTime();
+                CtMethod m = ctClass.getDeclaredMethod("addImpl");
+                m.insertBefore("{org.example.SwingAgent.processContainer_addImpl($1);}");
+                return toBytecode(ctClass, 1, phase, timing);
+            }
+
+            // tracking the event dispatch thread in java.awt.EventQueue
+            if(className.equals("java.awt.EventQueue")) {
+                AgentLog.info(TRANSFORM, "Transforming %s", className);
+                phase = System.nanoTime();
+                ctClass.getDeclaredMethod("initDispatchThread").instrument(new ExprEditor() {
+                    @Override
+                    public void edit(MethodCall call) throws CannotCompileException {
+                        // the new thread must be known before it dispatches anything
+                        if(call.getMethodName().equals("start")) {
+                            call.replace("{org.example.DispatchThreadCache.dispatchThreadChanged($0); $_ = $proceed($$);}");
+                        }
+                    }
+                });
+                ctClass.getDeclaredMethod("detachDispatchThread").insertAfter("{org.example.DispatchThreadCache.dispatchThreadDetached($1);}");
+                ctClass.getDeclaredMethod("push").insertAfter("{org.example.DispatchThreadCache.dispatchThreadChanged($1.dispatchThread);}");
+                ctClass.getDeclaredMethod("pop").insertAfter("{org.example.DispatchThreadCache.dispatchQueuePopped();}");
+                return toBytecode(ctClass, 4, phase, timing);
+            }
+
+            if(component == null) {
+                phase = System.nanoTime();
+                component = extendsJComponent(loader, ctClass.getClassFile().getSuperclass());
+                HierarchyIndex.record(loader, className, component);
+                if(timing != null) {
+                    timing.hierarchyNanos += System.nanoTime() - phase;
+                }
+            }
+
+            if(component) {
+                ProbeRules.MethodProbe classProbe = annotationProbe(ctClass);
+                if(classProbe == ProbeRules.MethodProbe.SKIP) {
+                    AgentLog.debug(TRANSFORM, "NOT instrumented: %s", className);
+                    return null;
+                }
+
+                phase = System.nanoTime();
+                ProbeEmitter emitter = new ProbeEmitter(ctClass.getClassFile());
+                MethodAnalysis analysis = rules.hasAnalysis() ? new MethodAnalysis(ctClass.getClassFile()) : null;
+                CtMethod[] methods = ctClass.getDeclaredMethods();
+                // probes avoided and made thread-safe by the analysis
+                int[] analysed = new int[2];
+                int probed = 0;
+                // insert EDT check into constructor, balanced the same way as for methods
+                // so that the thread mark is released when construction completes
+                CtConstructor[] ctors = ctClass.getDeclaredConstructors();
+                for(CtConstructor constr : ctors) {
+                    try {
+                        if(insertProbes(emitter, constr, probeOf(classProbe, constr, null, analysed))) {
+                            probed++;
+                        }
+                    } catch(Exception ex) {
+                        AgentLog.error(TRANSFORM, "Error instrumenting constructor: %s %s%s", className, constr.getName(), constr.getSignature(),
+                                first ? ex : null);
+                        first = false;
+                        if(timing != null) {
+                            timing.failed(constr.getName() + constr.getSignature(), ex);
+                        }
+                    }
+                }
+
+                // insert EDT check into non-thread safe methods
+                for(CtMethod m : methods) {
+                    if(Modifier.isAbstract(m.getModifiers()) || Modifier.isNative(m.getModifiers())) {
+                        continue;
+                    }
+                    try {
+                        if(insertProbes(emitter, m, probeOf(classProbe, m, analysis, analysed))) {
+                            probed++;
+                        }
+                    } catch(Exception ex) {
+                        AgentLog.error(TRANSFORM, "Error instrumenting method: %s %s%s", className, m.getName(), m.getSignature(),
+                                first ? ex : null);
+                        first = false;
+                        if(timing != null) {
+                            timing.failed(m.getName() + m.getSignature(), ex);
+                        }
+                    }
+                }
+                if(analysis != null) {
+                    MethodAnalysis.record(className, analysed[0], analysed[1]);
+                }
+                AgentLog.debug(TRANSFORM, "Instrumented: %s", className);
+                return toBytecode(ctClass, probed, phase, timing);
+            } else {
+                AgentLog.debug(TRANSFORM, "NOT instrumented: %s", className);
+                return null;
+            }
+        } finally {
+            // releases the class model once its bytecode is produced, the only place it is released
+            ClassPools.release(ctClass);
+        }
+    }
+
+    // determines if class is JComponent or derived, remembering the answer for each class on the way;
+    // superclasses are read from their classfiles, no class model is built and kept in a pool
+    private boolean extendsJComponent(ClassLoader loader, String className) throws Exception {
+        if(className == null || className.equals("java.lang.Object")) {
+            return false;
+        }
+        Boolean known = HierarchyIndex.extendsJComponent(loader, className);
+        if(known != null) {
+            return known;
+        }
+        // looked up parent first like the pools, a class of the bootstrap pool is recorded for all loaders
+        ClassLoader definingLoader = null;
+        byte[] bytes = ClassPools.readClassfile(pool != null ? pool : ClassPools.forLoader(null), className);
+        if(bytes == null && pool == null && loader != null) {
+            definingLoader = loader;
+            bytes = ClassPools.readClassfile(ClassPools.forLoader(loader), className);
+        }
+        if(bytes == null) {
+            throw new NotFoundException(className);
+        }
+        boolean result = extendsJComponent(loader, ClassFileFilter.superclassName(bytes));
+        HierarchyIndex.record(definingLoader, className, result);
+        return result;
+    }
+
+    // ends the insert phase started at insertStart
+    private static byte[] toBytecode(CtClass ctClass, int methods, long insertStart, TransformTimeline.Record timing) throws Exception {
+        if(timing == null) {
+            return ctClass.toBytecode();
+        }
+        long phase = System.nanoTime();
+        timing.insertNanos = phase - insertStart;
+        timing.methods = methods;
+        byte[] result = ctClass.toBytecode();
+        timing.bytecodeNanos = System.nanoTime() - phase;
+        return result;
+    }
+
+    /** @return whether probes were inserted */
+    private static boolean insertProbes(ProbeEmitter emitter, CtBehavior behavior, ProbeRules.MethodProbe probe) throws BadBytecode {
+        if(probe == ProbeRules.MethodProbe.SKIP) {
+            return false;
+        }
+        emitter.insert(behavior.getMethodInfo(), probe == ProbeRules.MethodProbe.THREAD_SAFE);
+        return true;
+    }
+
+    /**
+     * Determines the probe of a constructor or method: annotations win over name rules,
+     * which win over the method analysis.
+     *
+     * @param analysis classifies the methods of the class, null if the method is not analysed
+     * @param analysed counts the probes avoided and made thread-safe by the analysis
+     */
+    private ProbeRules.MethodProbe probeOf(ProbeRules.MethodProbe classProbe, CtBehavior behavior,
+                                           MethodAnalysis analysis, int[] analysed) throws BadBytecode {
+        ProbeRules.MethodProbe probe = annotationProbe(behavior);
+        if(probe != null) {
+            return probe;
+        }
+        MethodInfo method = behavior.getMethodInfo2();
+        probe = rules.matchMethodRule(method.getName(), behavior.getSignature());
+        if(probe == null) {
+            probe = ProbeRules.MethodProbe.CHECK;
+            if(analysis != null) {
+                probe = rules.analysisProbe(analysis.classify(method));
+                if(probe == ProbeRules.MethodProbe.SKIP) {
+                    analysed[0]++;
+                } else if(probe == ProbeRules.MethodProbe.THREAD_SAFE) {
+                    analysed[1]++;
+                }
+            }
+        }
+        if(classProbe == ProbeRules.MethodProbe.THREAD_SAFE && probe == ProbeRules.MethodProbe.CHECK) {
+            return ProbeRules.MethodProbe.THREAD_SAFE;
+        }
+        return probe;
+    }
+
+    private ProbeRules.MethodProbe annotationProbe(CtClass ctClass) {
+        if(!rules.hasAnnotationRules()) {
+            return null;
+        }
+        for(String annotation : rules.getSkipAnnotations()) {
+            if(ctClass.hasAnnotation(annotation)) {
+                return ProbeRules.MethodProbe.SKIP;
+            }
+        }
+        for(String annotation : rules.getThreadSafeAnnotations()) {
+            if(ctClass.hasAnnotation(annotation)) {
+                return ProbeRules.MethodProbe.THREAD_SAFE;
+            }
+        }
+        return null;
+    }
+
+    private ProbeRules.MethodProbe annotationProbe(CtBehavior behavior) {
+        if(!rules.hasAnnotationRules()) {
+            return null;
+        }
+        for(String annotation : rules.getSkipAnnotations()) {
+            if(behavior.hasAnnotation(annotation)) {
+                return ProbeRules.MethodProbe.SKIP;
+            }
+        }
+        for(String annotation : rules.getThreadSafeAnnotations()) {
+            if(behavior.hasAnnotation(annotation)) {
+                return ProbeRules.MethodProbe.THREAD_SAFE;
+            }
+        }
+        return null;
+    }
+}
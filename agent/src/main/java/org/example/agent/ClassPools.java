@@ -0,0 +1,131 @@
+package org.example.agent;
+
+import javassist.ClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.LoaderClassPath;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Javassist class pools used by the transformer, one per defining class loader.
+ *
+ * Every pool delegates to a shared pool for the bootstrap class path, so Swing and AWT
+ * supertypes are read once. Pools are weakly keyed by their loader and go away together
+ * with it.
+ */
+class ClassPools {
+
+    private static final ClassPool bootPool = createBootPool();
+
+    private static final Map<ClassLoader, ClassPool> loaderPools = new WeakHashMap<>();
+
+    private static ClassPool createBootPool() {
+        // platform loader sees the bootstrap modules and the appended boot class path
+        ClassPool pool = new LoaderPool(null);
+        pool.appendClassPath(new LoaderClassPath(ClassLoader.getPlatformClassLoader()));
+        pool.appendClassPath(new AgentClassPath());
+        pool.importPackage("org.example");
+        return pool;
+    }
+
+    /** returns the pool resolving classes visible to the given defining loader */
+    static ClassPool forLoader(ClassLoader loader) {
+        if(loader == null) {
+            return bootPool;
+        }
+        synchronized(loaderPools) {
+            ClassPool pool = loaderPools.get(loader);
+            if(pool == null) {
+                pool = new LoaderPool(bootPool);
+                pool.appendClassPath(new LoaderClassPath(loader));
+                pool.importPackage("org.example");
+                loaderPools.put(loader, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Agent classes on the boot class path. A jar appended by Boot-Class-Path when the agent
+     * is attached is known to the VM but not to the platform loader, so the classfiles are
+     * read through the system loader, which has the agent jar too. Only names the bootstrap
+     * loader defines are served, application classes sharing the package are left alone.
+     */
+    private static final class AgentClassPath implements ClassPath {
+        @Override
+        public InputStream openClassfile(String className) {
+            return isAgentClass(className) ? ClassLoader.getSystemResourceAsStream(className.replace('.', '/') + ".class") : null;
+        }
+
+        @Override
+        public URL find(String className) {
+            return isAgentClass(className) ? ClassLoader.getSystemResource(className.replace('.', '/') + ".class") : null;
+        }
+
+        private static boolean isAgentClass(String className) {
+            if(!className.startsWith("org.example.")) {
+                return false;
+            }
+            try {
+                return Class.forName(className, false, null) != null;
+            } catch(ClassNotFoundException e) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Builds the class model from the classfile bytes handed to the transformer instead of
+     * reading the class again. The model must be released with {@link #release(CtClass)}.
+     */
+    static CtClass makeClass(ClassLoader loader, byte[] bytes) throws IOException {
+        return forLoader(loader).makeClass(new ByteArrayInputStream(bytes), false);
+    }
+
+    /**
+     * Reads a classfile from the class path of the pool itself, not from its parent, without
+     * building a class model, which the pool would keep until it is detached.
+     *
+     * @return the classfile bytes, or null if the pool does not have the class
+     */
+    static byte[] readClassfile(ClassPool pool, String className) throws IOException {
+        URL url = pool.find(className);
+        if(url == null) {
+            return null;
+        }
+        try(InputStream in = url.openStream()) {
+            return in.readAllBytes();
+        }
+    }
+
+    /**
+     * Removes a class model made from classfile bytes from its pool, once. Unlike
+     * {@link CtClass#detach()} it leaves the pool alone when the model was already replaced
+     * or removed by another transformation of the same class, which the eager threads and
+     * the transformer may run at the same time.
+     */
+    static void release(CtClass ctClass) {
+        ClassPool pool = ctClass.getClassPool();
+        if(pool instanceof LoaderPool) {
+            ((LoaderPool) pool).release(ctClass);
+        } else {
+            ctClass.detach();
+        }
+    }
+
+    private static final class LoaderPool extends ClassPool {
+        LoaderPool(ClassPool parent) {
+            super(parent);
+        }
+
+        void release(CtClass ctClass) {
+            classes.remove(ctClass.getName(), ctClass);
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package org.example.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+
+/**
+ * Finds the classes the agent instruments among class files read from the runtime
+ * image, directories and jars, without loading them. JComponent subclasses are worked
+ * out from the superclass names in the class files read; a superclass not read is
+ * asked from the {@link HierarchyIndex}.
+ *
+ * @param <S> where a class was read from, handed back with it
+ */
+class ComponentScan<S> {
+
+    /** a class which gets probes */
+    static final class Found<S> {
+        final String name;
+        final String path;
+        final S source;
+        final int kind;
+        final byte[] bytes;
+
+        Found(String name, String path, S source, int kind, byte[] bytes) {
+            this.name = name;
+            this.path = path;
+            this.source = source;
+            this.kind = kind;
+            this.bytes = bytes;
+        }
+    }
+
+    // the jar or directory of the agent, its classes are never instrumented
+    private static final Path AGENT_LOCATION = agentLocation();
+
+    private final ProbeRules rules;
+    private final boolean containerProbe;
+    private final boolean componentProbes;
+
+    // dotted class name to dotted superclass name, for the classes which may be components
+    private final Map<String, String> superclasses = new HashMap<>();
+    private final Map<String, Boolean> components = new HashMap<>();
+    private final List<Found<S>> found = new ArrayList<>();
+
+    /**
+     * @param containerProbe whether {@code Container} is instrumented, see the {@code addImpl} option
+     * @param componentProbes whether components get EDT probes, see the {@code edtChecks} option
+     */
+    ComponentScan(ProbeRules rules, boolean containerProbe, boolean componentProbes) {
+        this.rules = rules;
+        this.containerProbe = containerProbe;
+        this.componentProbes = componentProbes;
+    }
+
+    void scanModule(FileSystem runtimeImage, String module, S source) throws IOException {
+        Path root = runtimeImage.getPath("/modules", module);
+        try(Stream<Path> files = Files.walk(root)) {
+            for(Path file : (Iterable<Path>) files::iterator) {
+                String path = root.relativize(file).toString();
+                if(path.endsWith(".class") && !path.equals("module-info.class")) {
+                    add(path, Files.readAllBytes(file), source);
+                }
+            }
+        }
+    }
+
+    /** reads the directories and jars of a class path, except the agent's own */
+    void scanClassPath(String classPath, S source) throws IOException {
+        for(String element : classPath.split(File.pathSeparator)) {
+            if(!element.isEmpty() && !Paths.get(element).toAbsolutePath().normalize().equals(AGENT_LOCATION)) {
+                scan(Paths.get(element), source);
+            }
+        }
+    }
+
+    private static Path agentLocation() {
+        try {
+            CodeSource source = ComponentScan.class.getProtectionDomain().getCodeSource();
+            return source == null ? null : Paths.get(source.getLocation().toURI()).toAbsolutePath().normalize();
+        } catch(Exception ex) {
+            return null;
+        }
+    }
+
+    /** reads a directory or jar */
+    void scan(Path root, S source) throws IOException {
+        if(Files.isDirectory(root)) {
+            try(Stream<Path> files = Files.walk(root)) {
+                for(Path file : (Iterable<Path>) files::iterator) {
+                    String path = root.relativize(file).toString().replace(File.separatorChar, '/');
+                    if(path.endsWith(".class") && !path.endsWith("module-info.class")) {
+                        add(path, Files.readAllBytes(file), source);
+                    }
+                }
+            }
+        } else if(Files.isRegularFile(root)) {
+            try(JarFile jar = new JarFile(root.toFile())) {
+                for(Enumeration<JarEntry> it = jar.entries(); it.hasMoreElements(); ) {
+                    JarEntry entry = it.nextElement();
+                    String path = entry.getName();
+                    if(path.endsWith(".class") && !path.startsWith("META-INF/") && !path.endsWith("module-info.class")) {
+                        try(InputStream in = jar.getInputStream(entry)) {
+                            add(path, in.readAllBytes(), source);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void add(String path, byte[] bytes, S source) {
+        String className = path.substring(0, path.length() - ".class".length());
+        int kind = ClassFileFilter.classify(rules, className, bytes);
+        if(kind == ClassFileFilter.REJECT
+                || kind == ClassFileFilter.CONTAINER && !containerProbe
+                || kind >= ClassFileFilter.CANDIDATE && !componentProbes) {
+            return;
+        }
+        String name = className.replace('/', '.');
+        if(kind == ClassFileFilter.CANDIDATE) {
+            // the first class of a name wins, as with the class loaders
+            superclasses.putIfAbsent(name, ClassFileFilter.superclassName(bytes));
+        }
+        found.add(new Found<>(name, path, source, kind, bytes));
+    }
+
+    /** @return the classes read which get probes, in the order read */
+    List<Found<S>> probedClasses() {
+        List<Found<S>> result = new ArrayList<>();
+        for(Found<S> c : found) {
+            if(c.kind != ClassFileFilter.CANDIDATE || extendsJComponent(c.name)) {
+                result.add(c);
+            }
+        }
+        return result;
+    }
+
+    boolean extendsJComponent(String name) {
+        if(name.equals(HierarchyIndex.JCOMPONENT)) {
+            return true;
+        }
+        Boolean result = components.get(name);
+        if(result != null) {
+            return result;
+        }
+        String superclass = superclasses.get(name);
+        if(superclass == null) {
+            result = HierarchyIndex.extendsJComponent(null, name) == Boolean.TRUE;
+        } else {
+            result = extendsJComponent(superclass);
+        }
+        components.put(name, result);
+        return result;
+    }
+}
@@ -0,0 +1,201 @@
+package org.example.agent;
+
+import org.example.AgentLog;
+import org.example.AgentOptions;
+
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import static org.example.AgentLog.Category.TRANSFORM;
+
+/**
+ * Instruments the classes the agent probes ahead of their loading, so that loading them,
+ * often on the EDT while the first screen is built, only takes a table lookup.
+ *
+ * With {@code eager} a background thread started at agent start reads the classes of
+ * the {@code java.desktop} module of the runtime image and of the class path
+ * ({@code eager.classpath=false} leaves the class path out), works out the JComponent
+ * subclasses from their superclass names, and instruments them on a fork-join pool of
+ * {@code eager.threads} threads (default and limit: the number of cores).
+ *
+ * A class loaded before its turn is instrumented by the loading thread as usual; one
+ * loaded while a pool thread instruments it waits for the result. The bytes given to the
+ * transformer must match those read at start, so a class changed in between, or defined
+ * by another loader, is instrumented again.
+ */
+class EagerInstrumenter {
+
+    static final byte[] UNCHANGED = new byte[0];
+
+    private static final int QUEUED = 0;
+    private static final int RUNNING = 1;
+    private static final int DONE = 2;
+    private static final int TAKEN = 3;
+
+    static volatile boolean active;
+
+    private static final ConcurrentHashMap<String, Entry> table = new ConcurrentHashMap<>();
+
+    private static final LongAdder used = new LongAdder();
+    private static final LongAdder waited = new LongAdder();
+    private static final LongAdder taken = new LongAdder();
+    private static final LongAdder mismatched = new LongAdder();
+
+    static void start(AgentOptions options, ProbeRules rules) {
+        if(!options.getBoolean("eager", false)) {
+            return;
+        }
+        int cores = Runtime.getRuntime().availableProcessors();
+        int threads = Math.max(1, Math.min(cores, options.getInt("eager.threads", cores)));
+        boolean classPath = options.getBoolean("eager.classpath", true);
+        // opened before the transformer is added, the classes it loads would otherwise be
+        // transformed by Javassist reading them through the file system being opened
+        FileSystem runtimeImage = FileSystems.getFileSystem(URI.create("jrt:/"));
+        active = true;
+        Thread scanner = new Thread(() -> run(runtimeImage, rules, threads, classPath), "SwingAgent eager instrumentation");
+        scanner.setDaemon(true);
+        scanner.start();
+        if(options.getBoolean("eager.stats", false)) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.printf("[SwingAgent] %s%n", statistics()), "SwingAgent eager statistics"));
+        }
+    }
+
+    private static void run(FileSystem runtimeImage, ProbeRules rules, int threads, boolean classPath) {
+        long start = System.nanoTime();
+        ComponentScan<ClassLoader> scan = new ComponentScan<>(rules, AgentMain.addImplProbe, AgentMain.edtChecks);
+        try {
+            scan.scanModule(runtimeImage, "java.desktop", null);
+            if(classPath) {
+                scan.scanClassPath(System.getProperty("java.class.path", ""), ClassLoader.getSystemClassLoader());
+            }
+        } catch(Exception ex) {
+            AgentLog.error(TRANSFORM, "Error reading classes for eager instrumentation", ex);
+        }
+
+        List<Entry> work = new ArrayList<>();
+        for(ComponentScan.Found<ClassLoader> c : scan.probedClasses()) {
+            if(c.kind == ClassFileFilter.CANDIDATE) {
+                HierarchyIndex.record(c.source, c.name, true);
+            }
+            Entry entry = new Entry(c.name, c.source, c.kind, c.bytes);
+            // the first entry of a name wins, as with the class loaders
+            if(table.putIfAbsent(entry.name, entry) == null) {
+                work.add(entry);
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threads, p -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+            thread.setName("SwingAgent eager " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+        ClassInstrumenter instrumenter = new ClassInstrumenter(rules);
+        for(Entry entry : work) {
+            pool.execute(() -> instrument(instrumenter, entry));
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch(InterruptedException ex) {
+            pool.shutdownNow();
+            return;
+        }
+        AgentLog.info(TRANSFORM, "Eager instrumentation of %d classes took %d ms",
+                work.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    private static void instrument(ClassInstrumenter instrumenter, Entry entry) {
+        if(!entry.state.compareAndSet(QUEUED, RUNNING)) {
+            return;
+        }
+        try {
+            Boolean component = entry.kind >= ClassFileFilter.CANDIDATE ? Boolean.TRUE : null;
+            byte[] result = instrumenter.instrument(entry.loader, entry.name, entry.bytes, component, null);
+            entry.result = result == null ? UNCHANGED : result;
+        } catch(Exception ex) {
+            // left to the transformer, which reports the failure when the class is loaded
+            entry.result = null;
+        } finally {
+            entry.bytes = null;
+            entry.state.set(DONE);
+            entry.done.countDown();
+        }
+    }
+
+    /**
+     * @return the instrumented bytecode, {@link #UNCHANGED}, or null if the class has to be
+     * instrumented by the caller
+     */
+    static byte[] lookup(ClassLoader loader, String name, byte[] bytes) {
+        Entry entry = table.get(name);
+        if(entry == null || entry.loader != loader) {
+            return null;
+        }
+        if(entry.state.compareAndSet(QUEUED, TAKEN)) {
+            // not started yet, the caller is quicker doing it itself
+            table.remove(name, entry);
+            taken.increment();
+            return null;
+        }
+        if(entry.state.get() == RUNNING) {
+            waited.increment();
+            try {
+                entry.done.await();
+            } catch(InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        table.remove(name, entry);
+        if(entry.result == null || entry.crc != crc(bytes)) {
+            mismatched.increment();
+            return null;
+        }
+        used.increment();
+        return entry.result;
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+
+    static String statistics() {
+        return String.format("eager instrumentation: %d used, %d waited for, %d instrumented on loading, %d not usable, %d unused",
+                used.sum(), waited.sum(), taken.sum(), mismatched.sum(), table.size());
+    }
+
+    private static final class Entry {
+        final String name;
+        // null for the runtime image, the system class loader for the class path
+        final ClassLoader loader;
+        final int kind;
+        final int crc;
+        // dropped once instrumented
+        byte[] bytes;
+        volatile byte[] result;
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Entry(String name, ClassLoader loader, int kind, byte[] bytes) {
+            this.name = name;
+            this.loader = loader;
+            this.kind = kind;
+            this.bytes = bytes;
+            this.crc = crc(bytes);
+        }
+    }
+}
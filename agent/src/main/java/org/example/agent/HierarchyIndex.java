@@ -0,0 +1,121 @@
+package org.example.agent;
+
+import org.example.WeakIdentityMap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers which classes are JComponent subclasses, keyed by defining class loader
+ * and class name, so that the hierarchy of a class is resolved only once.
+ *
+ * A lookup follows the parent chain of the initiating loader, the same way the JVM
+ * resolves a superclass name. Entries of a loader go away together with the loader.
+ * Lookups take no lock, so threads loading classes at the same time do not wait on each other.
+ */
+class HierarchyIndex {
+
+    static final String JCOMPONENT = "javax.swing.JComponent";
+
+    private static final ConcurrentHashMap<String, Boolean> bootTypes = new ConcurrentHashMap<>();
+
+    private static final WeakIdentityMap<ClassLoader, ConcurrentHashMap<String, Boolean>> loaderTypes = new WeakIdentityMap<>();
+
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+
+    /**
+     * @return whether the class seen from the loader extends JComponent, or null if unknown
+     */
+    static Boolean extendsJComponent(ClassLoader loader, String className) {
+        if(JCOMPONENT.equals(className)) {
+            return Boolean.TRUE;
+        }
+        for(ClassLoader current = loader; current != null; current = current.getParent()) {
+            ConcurrentHashMap<String, Boolean> types = typesOf(current, false);
+            Boolean known = types == null ? null : types.get(className);
+            if(known != null) {
+                hits.increment();
+                return known;
+            }
+        }
+        Boolean known = bootTypes.get(className);
+        if(known != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return known;
+    }
+
+    static void record(ClassLoader definingLoader, String className, boolean extendsJComponent) {
+        ConcurrentHashMap<String, Boolean> types = definingLoader == null ? bootTypes : typesOf(definingLoader, true);
+        types.put(className, extendsJComponent);
+    }
+
+    private static ConcurrentHashMap<String, Boolean> typesOf(ClassLoader loader, boolean create) {
+        ConcurrentHashMap<String, Boolean> types = loaderTypes.get(loader);
+        if(types == null && create) {
+            ConcurrentHashMap<String, Boolean> created = new ConcurrentHashMap<>();
+            types = loaderTypes.putIfAbsent(loader, created);
+            if(types == null) {
+                types = created;
+            }
+        }
+        return types;
+    }
+
+    /** records the classes loaded before the agent was started */
+    static void seed(Class<?>[] loadedClasses) {
+        for(Class<?> c : loadedClasses) {
+            if(!c.isInterface() && !c.isArray() && !c.isPrimitive() && c.getName().indexOf('/') < 0) {
+                seed(c);
+            }
+        }
+    }
+
+    private static boolean seed(Class<?> c) {
+        if(c == null) {
+            return false;
+        }
+        if(JCOMPONENT.equals(c.getName())) {
+            return true;
+        }
+        ClassLoader loader = c.getClassLoader();
+        ConcurrentHashMap<String, Boolean> types = loader == null ? bootTypes : typesOf(loader, true);
+        Boolean known = types.get(c.getName());
+        if(known == null) {
+            known = seed(c.getSuperclass());
+            types.put(c.getName(), known);
+        }
+        return known;
+    }
+
+    static int size() {
+        int size = bootTypes.size();
+        for(Map<String, Boolean> types : loaderTypes.values()) {
+            size += types.size();
+        }
+        return size;
+    }
+
+    static long getHits() {
+        return hits.sum();
+    }
+
+    static long getMisses() {
+        return misses.sum();
+    }
+
+    static double getHitRate() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    static String statistics() {
+        return String.format("hierarchy index: %d types, %d hits, %d misses, hit rate %.1f%%",
+                size(), getHits(), getMisses(), getHitRate() * 100);
+    }
+}
@@ -0,0 +1,394 @@
+package org.example.agent;
+
+import org.example.AgentLog;
+import org.example.AgentOptions;
+import org.example.ProbeLinker;
+
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.io.IOException;
+import java.lang.instrument.Instrumentation;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.example.AgentLog.Category.AGENT;
+
+/**
+ * Changes what is instrumented while the application runs.
+ *
+ * Changes come from a control file ({@code control.file=<file>}, checked every
+ * {@code control.interval} milliseconds, default 2000) and from JMX
+ * ({@code control.jmx}, see {@link SwingAgentControlMBean}). The control file holds
+ * the directives of a rules file plus the feature switches:
+ * <pre>
+ *   edtChecks  off                  no EDT probes in any class
+ *   addImpl    on                   probe Container.addImpl
+ *   probes     off                  EDT probes switched off without retransforming, see ProbeLinker
+ *   exclude    com.myapp.ui.FastTable
+ * </pre>
+ * The rules are those of the agent options followed by the control file and then the
+ * JMX rules; for the feature switches the last change wins. A switch missing from the
+ * file has the value of the agent options. A file with an invalid line changes nothing,
+ * it is read again once it is modified.
+ *
+ * A change retransforms only the classes whose probes it adds or removes, and all
+ * probed classes when a method rule changed. Retransformation starts from the
+ * original bytecode, so the probes of a disabled feature are gone from the classes.
+ */
+class LiveConfiguration {
+
+    private static AgentOptions options;
+    private static Path file;
+    private static long fileModified;
+    // modification time of a control file that could not be applied, read again when it changes
+    private static long failedModified = -1;
+
+    private static boolean edtChecks = true;
+    private static boolean addImpl = true;
+    private static boolean probes = true;
+    // the last control file applied, switches it does not set have their defaults
+    private static FileSettings fileSettings;
+    private static final List<String[]> jmxRules = new ArrayList<>();
+
+    static synchronized void configure(AgentOptions options) throws IOException {
+        LiveConfiguration.options = options;
+        edtChecks = options.getBoolean("edtChecks", true);
+        addImpl = options.getBoolean("addImpl", true);
+        probes = options.getBoolean("probe.enabled", true);
+        String location = options.get("control.file", null);
+        if(location != null) {
+            file = Paths.get(location).toAbsolutePath();
+            fileSettings = FileSettings.defaults(options);
+            // a bad file leaves the defaults, the watcher applies it once it is fixed
+            long modified = -1;
+            try {
+                modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+                FileSettings read = readFile();
+                applyFile(read);
+                fileModified = read.modified;
+            } catch(IOException ex) {
+                failedModified = modified;
+                AgentLog.error(AGENT, "Error reading control file %s: %s", file, ex, null);
+            }
+            long interval = Math.max(100, options.getInt("control.interval", 2000));
+            Thread watcher = new Thread(() -> watch(interval), "SwingAgent control file");
+            watcher.setDaemon(true);
+            watcher.start();
+        }
+        ProbeLinker.setEnabled(probes);
+        // the transformer is not added yet, nothing to retransform
+        AgentMain.rules = buildRules();
+        AgentMain.edtChecks = edtChecks;
+        AgentMain.addImplProbe = addImpl;
+        if(options.getBoolean("control.jmx", false)) {
+            // the platform MBean server takes a while to start, so not on the startup path
+            Thread registration = new Thread(LiveConfiguration::registerMBean, "SwingAgent JMX");
+            registration.setDaemon(true);
+            registration.start();
+        }
+    }
+
+    private static void registerMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    new StandardMBean(new Control(), SwingAgentControlMBean.class),
+                    new ObjectName("org.example:type=SwingAgent"));
+        } catch(Exception ex) {
+            AgentLog.error(AGENT, "Error registering the JMX control", ex);
+        }
+    }
+
+    private static void watch(long interval) {
+        for(;;) {
+            try {
+                Thread.sleep(interval);
+            } catch(InterruptedException ex) {
+                return;
+            }
+            long modified = -1;
+            try {
+                modified = Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : 0;
+                if(modified != fileModified && modified != failedModified) {
+                    reload();
+                }
+            } catch(Exception ex) {
+                failedModified = modified;
+                AgentLog.error(AGENT, "Error reading control file %s: %s", file, ex, null);
+            }
+        }
+    }
+
+    static synchronized void reload() throws IOException {
+        if(file == null) {
+            return;
+        }
+        FileSettings read = readFile();
+        FileSettings previous = fileSettings;
+        boolean oldEdtChecks = edtChecks;
+        boolean oldAddImpl = addImpl;
+        boolean oldProbes = probes;
+        applyFile(read);
+        try {
+            apply();
+        } catch(IOException | RuntimeException ex) {
+            fileSettings = previous;
+            edtChecks = oldEdtChecks;
+            addImpl = oldAddImpl;
+            probes = oldProbes;
+            throw ex;
+        }
+        ProbeLinker.setEnabled(probes);
+        fileModified = read.modified;
+        failedModified = -1;
+    }
+
+    // switches changed by the file since it was last applied, a JMX change of the others stays
+    private static void applyFile(FileSettings read) {
+        if(read.edtChecks != fileSettings.edtChecks) {
+            edtChecks = read.edtChecks;
+        }
+        if(read.addImpl != fileSettings.addImpl) {
+            addImpl = read.addImpl;
+        }
+        if(read.probes != fileSettings.probes) {
+            probes = read.probes;
+        }
+        fileSettings = read;
+    }
+
+    // parses and checks the whole file, a missing file has no rules, so deleting it undoes its rules
+    private static FileSettings readFile() throws IOException {
+        FileSettings read = FileSettings.defaults(options);
+        if(!Files.exists(file)) {
+            return read;
+        }
+        read.modified = Files.getLastModifiedTime(file).toMillis();
+        ProbeRules check = ProbeRules.defaults();
+        int lineNumber = 0;
+        for(String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            lineNumber++;
+            int comment = line.indexOf('#');
+            if(comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if(line.isEmpty()) {
+                continue;
+            }
+            String[] parts = line.split("[\\s=]+", 2);
+            if(parts.length != 2) {
+                throw new IOException(file + ":" + lineNumber + ": invalid line: " + line);
+            }
+            parts[1] = parts[1].trim();
+            if(parts[0].equals("edtChecks")) {
+                read.edtChecks = parseSwitch(parts[1], lineNumber);
+            } else if(parts[0].equals("addImpl")) {
+                read.addImpl = parseSwitch(parts[1], lineNumber);
+            } else if(parts[0].equals("probes")) {
+                read.probes = parseSwitch(parts[1], lineNumber);
+            } else if(check.add(parts[0], parts[1])) {
+                read.rules.add(parts);
+            } else {
+                throw new IOException(file + ":" + lineNumber + ": unknown directive: " + parts[0]);
+            }
+        }
+        return read;
+    }
+
+    private static boolean parseSwitch(String value, int lineNumber) throws IOException {
+        if(value.equalsIgnoreCase("on") || value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if(value.equalsIgnoreCase("off") || value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IOException(file + ":" + lineNumber + ": expected on or off: " + value);
+    }
+
+    private static ProbeRules buildRules() throws IOException {
+        ProbeRules rules = ProbeRules.compile(options);
+        List<String[]> fileRules = fileSettings == null ? Collections.emptyList() : fileSettings.rules;
+        for(List<String[]> source : List.of(fileRules, jmxRules)) {
+            for(String[] rule : source) {
+                if(!rules.add(rule[0], rule[1])) {
+                    AgentLog.warn(AGENT, "Ignoring invalid rule: %s", rule[0] + ' ' + rule[1]);
+                }
+            }
+        }
+        return rules;
+    }
+
+    /** puts the current configuration in effect and retransforms the affected classes */
+    private static void apply() throws IOException {
+        ProbeRules oldRules = AgentMain.rules;
+        boolean oldEdtChecks = AgentMain.edtChecks;
+        boolean oldAddImpl = AgentMain.addImplProbe;
+        ProbeRules newRules = buildRules();
+        boolean newEdtChecks = edtChecks;
+        boolean newAddImpl = addImpl;
+        if(newRules.toString().equals(oldRules.toString()) && newEdtChecks == oldEdtChecks && newAddImpl == oldAddImpl) {
+            return;
+        }
+        // cached bytecode was produced with the rules of the agent options
+        AgentMain.bytecodeCurrent = false;
+        AgentMain.rules = newRules;
+        AgentMain.edtChecks = newEdtChecks;
+        AgentMain.addImplProbe = newAddImpl;
+        AgentLog.info(AGENT, "Instrumentation changed: edtChecks=%s, addImpl=%s", newEdtChecks, newAddImpl);
+        AgentLog.info(AGENT, "Probe rules: %s", newRules);
+
+        Instrumentation instrumentation = AgentMain.instrumentation;
+        if(instrumentation == null || AgentMain.transformer == null) {
+            // not attached, classes are instrumented with the new configuration on the next attach
+            return;
+        }
+        boolean methodsChanged = !newRules.methodRules().equals(oldRules.methodRules());
+        Retransformer.submit(instrumentation, () -> {
+            List<Class<?>> affected = new ArrayList<>();
+            for(Class<?> c : instrumentation.getAllLoadedClasses()) {
+                if(!Retransformer.isTransformable(instrumentation, c)) {
+                    continue;
+                }
+                if(c.getName().equals("java.awt.Container")) {
+                    if(oldAddImpl != newAddImpl) {
+                        affected.add(c);
+                    }
+                    continue;
+                }
+                boolean before = oldEdtChecks && Retransformer.isProbed(oldRules, c);
+                boolean after = newEdtChecks && Retransformer.isProbed(newRules, c);
+                if(before != after || after && methodsChanged) {
+                    affected.add(c);
+                }
+            }
+            return affected;
+        }, "Reconfigure", null);
+    }
+
+    private static synchronized void setEdtChecks(boolean enabled) throws IOException {
+        edtChecks = enabled;
+        apply();
+    }
+
+    private static synchronized void setAddImpl(boolean enabled) throws IOException {
+        addImpl = enabled;
+        apply();
+    }
+
+    private static synchronized void setProbes(boolean enabled) {
+        probes = enabled;
+        ProbeLinker.setEnabled(enabled);
+    }
+
+    private static synchronized void addRule(String directive, String value) throws IOException {
+        if(!ProbeRules.defaults().add(directive, value)) {
+            throw new IllegalArgumentException("Unknown directive: " + directive);
+        }
+        jmxRules.add(new String[] {directive, value});
+        apply();
+    }
+
+    private static synchronized void clearRules() throws IOException {
+        jmxRules.clear();
+        apply();
+    }
+
+    // JMX errors are reported to the caller, not as checked exceptions it may not know
+    private static final class Control implements SwingAgentControlMBean {
+
+        @Override
+        public boolean isEdtChecks() {
+            return AgentMain.edtChecks;
+        }
+
+        @Override
+        public void setEdtChecks(boolean enabled) {
+            run(() -> LiveConfiguration.setEdtChecks(enabled));
+        }
+
+        @Override
+        public boolean isAddImpl() {
+            return AgentMain.addImplProbe;
+        }
+
+        @Override
+        public void setAddImpl(boolean enabled) {
+            run(() -> LiveConfiguration.setAddImpl(enabled));
+        }
+
+        @Override
+        public boolean isProbesEnabled() {
+            return ProbeLinker.isEnabled();
+        }
+
+        @Override
+        public void setProbesEnabled(boolean enabled) {
+            LiveConfiguration.setProbes(enabled);
+        }
+
+        @Override
+        public String getRules() {
+            return AgentMain.rules.toString();
+        }
+
+        @Override
+        public void includeClass(String pattern) {
+            addRule("include", pattern);
+        }
+
+        @Override
+        public void excludeClass(String pattern) {
+            addRule("exclude", pattern);
+        }
+
+        @Override
+        public void addRule(String directive, String value) {
+            run(() -> LiveConfiguration.addRule(directive, value));
+        }
+
+        @Override
+        public void clearRules() {
+            run(LiveConfiguration::clearRules);
+        }
+
+        @Override
+        public void reload() {
+            run(LiveConfiguration::reload);
+        }
+
+        private static void run(Change change) {
+            try {
+                change.run();
+            } catch(IOException ex) {
+                throw new IllegalStateException(ex.getMessage(), ex);
+            }
+        }
+    }
+
+    private interface Change {
+        void run() throws IOException;
+    }
+
+    /** what a control file sets, checked as a whole before any of it is applied */
+    private static final class FileSettings {
+        long modified;
+        boolean edtChecks;
+        boolean addImpl;
+        boolean probes;
+        final List<String[]> rules = new ArrayList<>();
+
+        static FileSettings defaults(AgentOptions options) {
+            FileSettings settings = new FileSettings();
+            settings.edtChecks = options.getBoolean("edtChecks", true);
+            settings.addImpl = options.getBoolean("addImpl", true);
+            settings.probes = options.getBoolean("probe.enabled", true);
+            return settings;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.example.agent;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.example.AgentMetrics;
+import org.example.AgentOptions;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Classifies methods by their bytecode before probes are inserted, so that methods which
+ * cannot break the Swing threading rules on their own need no probe:
+ * <ul>
+ *   <li>{@link ProbeRules.MethodKind#GETTER} returns a field of {@code this} or a static field,</li>
+ *   <li>{@link ProbeRules.MethodKind#CONSTANT} returns a constant, like {@code getUIClassID},</li>
+ *   <li>{@link ProbeRules.MethodKind#DELEGATION} only calls another method declared in the
+ *       same class on {@code this} with its arguments or constants, that method keeps its
+ *       own probe,</li>
+ *   <li>{@link ProbeRules.MethodKind#STATE} writes fields or arrays, or calls listeners
+ *       ({@code fire*} methods, methods of {@code *Listener} types),</li>
+ *   <li>{@link ProbeRules.MethodKind#OTHER} is anything else.</li>
+ * </ul>
+ * One instance classifies the methods of one class. Names are compared as the strings of
+ * the constant pool and the owners of called methods are looked up once per class, so
+ * classifying builds no strings. With {@code analysis.stats} the kinds found and the
+ * classes avoiding most probes are printed at exit. Classes taken from the bytecode
+ * cache are not analysed again and not counted.
+ */
+class MethodAnalysis {
+
+    // methods of more instructions are not looked at for a simple shape
+    private static final int MAX_SIMPLE = 8;
+    // classes listed in the report
+    private static final int TOP = 20;
+
+    // methods classified, by kind
+    private static final AtomicLongArray kinds = new AtomicLongArray(ProbeRules.MethodKind.values().length);
+    // class name to probes avoided and downgraded, only with analysis.stats
+    private static final Map<String, int[]> classes = new ConcurrentHashMap<>();
+    private static volatile boolean stats;
+
+    // owner classes of called methods by constant pool index
+    private static final byte UNKNOWN = 0;
+    private static final byte LISTENER = 1;
+    private static final byte NOT_LISTENER = 2;
+
+    private final ClassFile classFile;
+    private final ConstPool constPool;
+    private byte[] owners;
+
+    MethodAnalysis(ClassFile classFile) {
+        this.classFile = classFile;
+        this.constPool = classFile.getConstPool();
+        this.owners = new byte[constPool.getSize()];
+    }
+
+    static void configure(AgentOptions options) {
+        stats = options.getBoolean("analysis.stats", false);
+        if(stats) {
+            Runtime.getRuntime().addShutdownHook(new Thread(
+                    () -> System.out.printf("[SwingAgent] %s", report()), "SwingAgent analysis statistics"));
+        }
+    }
+
+    ProbeRules.MethodKind classify(MethodInfo method) throws BadBytecode {
+        ProbeRules.MethodKind kind = classify0(method);
+        kinds.incrementAndGet(kind.ordinal());
+        return kind;
+    }
+
+    private ProbeRules.MethodKind classify0(MethodInfo method) throws BadBytecode {
+        CodeAttribute code = method.getCodeAttribute();
+        if(code == null || !method.isMethod()) {
+            return ProbeRules.MethodKind.OTHER;
+        }
+        boolean simple = code.getExceptionTable().size() == 0;
+        int[] positions = new int[MAX_SIMPLE];
+        int count = 0;
+        CodeIterator iterator = code.iterator();
+        while(iterator.hasNext()) {
+            int at = iterator.next();
+            int op = iterator.byteAt(at);
+            if(writesState(op) || isInvoke(op) && callsListener(iterator.u16bitAt(at + 1))) {
+                return ProbeRules.MethodKind.STATE;
+            }
+            if(count < MAX_SIMPLE) {
+                positions[count] = at;
+            }
+            count++;
+            if(op >= Opcode.IFEQ && op <= Opcode.LOOKUPSWITCH || op >= Opcode.IFNULL && op <= Opcode.JSR_W) {
+                simple = false;
+            }
+        }
+        if(!simple || count > MAX_SIMPLE) {
+            return ProbeRules.MethodKind.OTHER;
+        }
+
+        int last = iterator.byteAt(positions[count - 1]);
+        boolean returnsValue = last >= Opcode.IRETURN && last <= Opcode.ARETURN;
+        int first = iterator.byteAt(positions[0]);
+        if(count == 2 && returnsValue && isConstant(first)) {
+            return ProbeRules.MethodKind.CONSTANT;
+        }
+        boolean onThis = (method.getAccessFlags() & AccessFlag.STATIC) == 0;
+        if(returnsValue && (count == 2 && first == Opcode.GETSTATIC
+                || count == 3 && onThis && first == Opcode.ALOAD_0 && iterator.byteAt(positions[1]) == Opcode.GETFIELD)) {
+            return ProbeRules.MethodKind.GETTER;
+        }
+
+        // this, arguments and constants, one call, a return
+        if(!onThis || count < 3 || first != Opcode.ALOAD_0 || !(returnsValue || last == Opcode.RETURN)) {
+            return ProbeRules.MethodKind.OTHER;
+        }
+        for(int i = 1; i < count - 2; i++) {
+            int op = iterator.byteAt(positions[i]);
+            if(!isConstant(op) && !(op >= Opcode.ILOAD && op <= Opcode.ALOAD_3)) {
+                return ProbeRules.MethodKind.OTHER;
+            }
+        }
+        int call = positions[count - 2];
+        int op = iterator.byteAt(call);
+        if(op != Opcode.INVOKEVIRTUAL && op != Opcode.INVOKESPECIAL) {
+            return ProbeRules.MethodKind.OTHER;
+        }
+        int methodRef = iterator.u16bitAt(call + 1);
+        if(constPool.getMethodrefClass(methodRef) != constPool.getThisClassInfo()
+                || !declaresOther(method, constPool.getMethodrefName(methodRef), constPool.getMethodrefType(methodRef))) {
+            return ProbeRules.MethodKind.OTHER;
+        }
+        return ProbeRules.MethodKind.DELEGATION;
+    }
+
+    // whether the class declares another method with a body of the name and descriptor
+    private boolean declaresOther(MethodInfo caller, String name, String descriptor) {
+        for(MethodInfo method : classFile.getMethods()) {
+            if(method != caller && method.isMethod() && method.getCodeAttribute() != null
+                    && method.getName().equals(name) && method.getDescriptor().equals(descriptor)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean writesState(int op) {
+        return op == Opcode.PUTFIELD || op == Opcode.PUTSTATIC || op >= Opcode.IASTORE && op <= Opcode.SASTORE;
+    }
+
+    private static boolean isInvoke(int op) {
+        return op >= Opcode.INVOKEVIRTUAL && op <= Opcode.INVOKEINTERFACE;
+    }
+
+    // reads methods and interface methods alike
+    private boolean callsListener(int methodRef) {
+        String name = constPool.getMethodrefName(methodRef);
+        if(name != null && name.startsWith("fire")) {
+            return true;
+        }
+        int owner = constPool.getMethodrefClass(methodRef);
+        if(owner >= owners.length) {
+            owners = Arrays.copyOf(owners, constPool.getSize());
+        }
+        if(owners[owner] == UNKNOWN) {
+            String className = constPool.getClassInfo(owner);
+            owners[owner] = className != null && className.endsWith("Listener") ? LISTENER : NOT_LISTENER;
+        }
+        return owners[owner] == LISTENER;
+    }
+
+    // pushes a constant and takes nothing from the stack
+    private static boolean isConstant(int op) {
+        return op >= Opcode.ACONST_NULL && op <= Opcode.LDC2_W;
+    }
+
+    /** counts the probes a class avoided by the analysis, skipped or made thread-safe */
+    static void record(String className, int avoided, int downgraded) {
+        AgentMetrics.probesAvoided.add(avoided);
+        AgentMetrics.probesDowngraded.add(downgraded);
+        if(stats && avoided + downgraded > 0) {
+            classes.put(className, new int[] {avoided, downgraded});
+        }
+    }
+
+    static String report() {
+        StringBuilder out = new StringBuilder("method analysis:");
+        for(ProbeRules.MethodKind kind : ProbeRules.MethodKind.values()) {
+            out.append(' ').append(kind.name().toLowerCase()).append(' ').append(kinds.get(kind.ordinal()));
+        }
+        out.append(String.format(", %d probes avoided, %d made thread-safe%n",
+                AgentMetrics.probesAvoided.sum(), AgentMetrics.probesDowngraded.sum()));
+        List<Map.Entry<String, int[]>> entries = new ArrayList<>(classes.entrySet());
+        entries.sort((a, b) -> Integer.compare(b.getValue()[0] + b.getValue()[1], a.getValue()[0] + a.getValue()[1]));
+        out.append(String.format("  %8s %11s  %s%n", "avoided", "thread-safe", "class"));
+        for(Map.Entry<String, int[]> entry : entries.subList(0, Math.min(TOP, entries.size()))) {
+            out.append(String.format("  %8d %11d  %s%n", entry.getValue()[0], entry.getValue()[1], entry.getKey()));
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,177 @@
+package org.example.agent;
+
+import javassist.ClassPool;
+import org.example.AgentOptions;
+import org.example.ProbeLinker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+
+/**
+ * Instruments classes ahead of time, so that the application runs with the probes but
+ * without the agent, its transformer and Javassist:
+ * <pre>
+ *   java -cp agent.jar org.example.agent.OfflineInstrumenter [--options agent-options] [--jdk]
+ *        [--classpath libraries] --out dir [application.jar ...]
+ * </pre>
+ * Each application jar is copied to the output directory with its components
+ * instrumented. With {@code --jdk} the instrumented {@code java.desktop} classes of the
+ * running JDK are written to {@code dir/java.desktop}, a directory for
+ * {@code --patch-module}; it only fits the same JDK version. {@code --classpath} names
+ * libraries whose classes are superclasses of application classes but are not written.
+ * The agent options deciding the probes ({@code include}, {@code skip}, {@code edtChecks},
+ * {@code linkage}, ...) are the same as for the agent. Usage errors and classes which
+ * cannot be instrumented are reported on {@code System.err}; the exit status is 2 for
+ * wrong usage and 1 if any class was left unchanged, so a build can fail on either.
+ *
+ * The instrumented application runs with the probe runtime jar on the boot class path:
+ * <pre>
+ *   java -Xbootclasspath/a:agent-probe-runtime.jar
+ *        --patch-module java.desktop=dir/java.desktop --add-reads java.desktop=ALL-UNNAMED
+ *        -Dswingagent.options=violations.report -cp dir/application.jar ...
+ * </pre>
+ */
+public class OfflineInstrumenter {
+
+    private static final String JDK = "java.desktop";
+    private static final String LIBRARY = "";
+
+    private static final String USAGE = "Usage: OfflineInstrumenter [--options agent-options] [--jdk] [--classpath libraries] --out dir [application.jar ...]";
+
+    public static void main(String[] args) throws Exception {
+        String agentOptions = null;
+        boolean jdk = false;
+        String classPath = null;
+        Path out = null;
+        List<Path> jars = new ArrayList<>();
+        for(int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if(arg.startsWith("--") && !arg.equals("--jdk") && i + 1 == args.length) {
+                usage("Missing value of " + arg);
+            }
+            switch(arg) {
+                case "--options": agentOptions = args[++i]; break;
+                case "--jdk": jdk = true; break;
+                case "--classpath": classPath = args[++i]; break;
+                case "--out": out = Paths.get(args[++i]); break;
+                default:
+                    if(arg.startsWith("--")) {
+                        usage("Unknown option " + arg);
+                    }
+                    jars.add(Paths.get(arg));
+            }
+        }
+        if(out == null || !jdk && jars.isEmpty()) {
+            usage(out == null ? "Missing --out" : "Nothing to instrument");
+        }
+
+        AgentOptions options = AgentOptions.parse(agentOptions);
+        ProbeLinker.configure(options);
+        MethodAnalysis.configure(options);
+        ProbeRules rules = ProbeRules.compile(options);
+        ComponentScan<String> scan = new ComponentScan<>(rules,
+                options.getBoolean("addImpl", true), options.getBoolean("edtChecks", true));
+        // the Swing classes are read in any case, most components extend them
+        FileSystem runtimeImage = FileSystems.getFileSystem(URI.create("jrt:/"));
+        scan.scanModule(runtimeImage, JDK, jdk ? JDK : LIBRARY);
+        ClassPool pool = new ClassPool(true);
+        pool.importPackage("org.example");
+        for(Path jar : jars) {
+            scan.scan(jar, jar.toString());
+            pool.insertClassPath(jar.toString());
+        }
+        if(classPath != null) {
+            scan.scanClassPath(classPath, LIBRARY);
+            pool.appendPathList(classPath);
+        }
+
+        // instrumented classes by source, each by its path in the source
+        Map<String, Map<String, byte[]>> instrumented = new HashMap<>();
+        ClassInstrumenter instrumenter = new ClassInstrumenter(rules, pool);
+        int failed = 0;
+        for(ComponentScan.Found<String> c : scan.probedClasses()) {
+            if(c.source.equals(LIBRARY)) {
+                continue;
+            }
+            try {
+                byte[] result = instrumenter.instrument(null, c.name, c.bytes,
+                        c.kind >= ClassFileFilter.CANDIDATE ? Boolean.TRUE : null, null);
+                if(result != null) {
+                    instrumented.computeIfAbsent(c.source, s -> new HashMap<>()).put(c.path, result);
+                }
+            } catch(Exception ex) {
+                failed++;
+                System.err.printf("Cannot instrument %s: %s%n", c.name, ex);
+            }
+        }
+
+        Files.createDirectories(out);
+        if(jdk) {
+            Map<String, byte[]> classes = instrumented.getOrDefault(JDK, Map.of());
+            Path patch = out.resolve(JDK);
+            for(Map.Entry<String, byte[]> entry : classes.entrySet()) {
+                Path file = patch.resolve(entry.getKey());
+                Files.createDirectories(file.getParent());
+                Files.write(file, entry.getValue());
+            }
+            System.out.printf("%s: %d classes instrumented into %s%n", JDK, classes.size(), patch);
+        }
+        for(Path jar : jars) {
+            Map<String, byte[]> classes = instrumented.getOrDefault(jar.toString(), Map.of());
+            Path target = out.resolve(jar.getFileName());
+            copyJar(jar, target, classes);
+            System.out.printf("%s: %d classes instrumented into %s%n", jar, classes.size(), target);
+        }
+        if(failed > 0) {
+            System.err.printf("%d classes could not be instrumented and were left unchanged%n", failed);
+            System.exit(1);
+        }
+    }
+
+    private static void usage(String error) {
+        System.err.println(error);
+        System.err.println(USAGE);
+        System.exit(2);
+    }
+
+    // copies the jar replacing the instrumented classes, signatures no longer match and are left out
+    private static void copyJar(Path source, Path target, Map<String, byte[]> classes) throws IOException {
+        try(JarFile jar = new JarFile(source.toFile());
+            JarOutputStream output = new JarOutputStream(Files.newOutputStream(target))) {
+            for(Enumeration<JarEntry> it = jar.entries(); it.hasMoreElements(); ) {
+                JarEntry entry = it.nextElement();
+                String name = entry.getName();
+                if(name.startsWith("META-INF/") && (name.endsWith(".SF") || name.endsWith(".RSA")
+                        || name.endsWith(".DSA") || name.endsWith(".EC"))) {
+                    continue;
+                }
+                byte[] replacement = classes.get(name);
+                JarEntry copy = new JarEntry(name);
+                copy.setTime(entry.getTime());
+                output.putNextEntry(copy);
+                if(replacement != null) {
+                    output.write(replacement);
+                } else {
+                    try(InputStream in = jar.getInputStream(entry)) {
+                        in.transferTo(output);
+                    }
+                }
+                output.closeEntry();
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package org.example.agent;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.BootstrapMethodsAttribute;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.CodeAttribute;
+import javassist.bytecode.CodeIterator;
+import javassist.bytecode.ConstPool;
+import javassist.bytecode.ExceptionTable;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import javassist.bytecode.StackMapTable;
+import org.example.ProbeLinker;
+
+import java.util.Arrays;
+
+/**
+ * Splices the EDT probes into method bodies as ready-made {@code invokestatic}
+ * instructions, instead of compiling the probe source for every method.
+ *
+ * The probe calls take no arguments and leave nothing on the stack, so they go in
+ * front of the first instruction and of every return without changing the frames of
+ * the method; the stack map offsets are shifted by Javassist. Only methods whose body
+ * can throw get a catch-all handler calling {@code finalizeCheckEDT} and rethrowing,
+ * for which a single frame is appended to the stack map. In constructors the handler
+ * starts after the {@code super()} or {@code this()} call, like the handlers of the
+ * constructor body itself.
+ *
+ * With {@code linkage=indy} the probes are {@code invokedynamic} call sites linked by
+ * {@link ProbeLinker}, except in classes older than Java 7.
+ *
+ * One instance serves the methods of one class, the constant pool entries of the
+ * probes are added once.
+ */
+class ProbeEmitter {
+
+    private static final String AGENT = "org.example.SwingAgent";
+    private static final String LINKER = "org.example.ProbeLinker";
+    private static final String BOOTSTRAP = "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+            + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+    private final ClassFile classFile;
+    private final ConstPool constPool;
+    private final byte[] check;
+    private final byte[] threadSafeCheck;
+    private final byte[] finalizeCheck;
+    private final int finalizeRef;
+    private int throwableClass;
+
+    ProbeEmitter(ClassFile classFile) {
+        this.classFile = classFile;
+        this.constPool = classFile.getConstPool();
+        int bootstrap = ProbeLinker.invokedynamic && classFile.getMajorVersion() >= ClassFile.JAVA_7
+                ? addBootstrapMethod() : -1;
+        check = probe(bootstrap, "checkEDT");
+        threadSafeCheck = probe(bootstrap, "threadSafeCheckEDT");
+        finalizeCheck = probe(bootstrap, "finalizeCheckEDT");
+        finalizeRef = ((finalizeCheck[1] & 0xff) << 8) | (finalizeCheck[2] & 0xff);
+    }
+
+    private byte[] probe(int bootstrap, String name) {
+        if(bootstrap < 0) {
+            int methodRef = constPool.addMethodrefInfo(constPool.addClassInfo(AGENT), name, "()V");
+            return new byte[] {(byte) Opcode.INVOKESTATIC, (byte) (methodRef >> 8), (byte) methodRef};
+        }
+        int callSite = constPool.addInvokeDynamicInfo(bootstrap, constPool.addNameAndTypeInfo(name, "()V"));
+        return new byte[] {(byte) Opcode.INVOKEDYNAMIC, (byte) (callSite >> 8), (byte) callSite, 0, 0};
+    }
+
+    /** @return the index of ProbeLinker.bootstrap among the bootstrap methods of the class */
+    private int addBootstrapMethod() {
+        int method = constPool.addMethodrefInfo(constPool.addClassInfo(LINKER), "bootstrap", BOOTSTRAP);
+        int handle = constPool.addMethodHandleInfo(ConstPool.REF_invokeStatic, method);
+        BootstrapMethodsAttribute attribute = (BootstrapMethodsAttribute) classFile.getAttribute(BootstrapMethodsAttribute.tag);
+        BootstrapMethodsAttribute.BootstrapMethod[] methods = attribute == null
+                ? new BootstrapMethodsAttribute.BootstrapMethod[0] : attribute.getMethods();
+        methods = Arrays.copyOf(methods, methods.length + 1);
+        methods[methods.length - 1] = new BootstrapMethodsAttribute.BootstrapMethod(handle, new int[0]);
+        // replaces the attribute of the class
+        classFile.addAttribute(new BootstrapMethodsAttribute(constPool, methods));
+        return methods.length - 1;
+    }
+
+    /**
+     * Inserts the probe calls into a method or constructor with a body.
+     *
+     * @param threadSafe whether the entry probe is {@code threadSafeCheckEDT}
+     */
+    void insert(MethodInfo method, boolean threadSafe) throws BadBytecode {
+        CodeAttribute code = method.getCodeAttribute();
+        CodeIterator iterator = code.iterator();
+        // exclusive, a loop jumping back to the first instruction does not run the probe again
+        iterator.insertExAt(0, threadSafe ? threadSafeCheck : check);
+
+        // inclusive, a jump to a return runs the probe
+        while(iterator.hasNext()) {
+            int at = iterator.next();
+            int op = iterator.byteAt(at);
+            if(op >= Opcode.IRETURN && op <= Opcode.RETURN) {
+                iterator.insertAt(at, finalizeCheck);
+            }
+        }
+
+        int start = check.length;
+        if(method.isConstructor()) {
+            iterator.begin();
+            int superCall = iterator.skipConstructor();
+            if(superCall >= 0) {
+                // after the invokespecial
+                start = superCall + 3;
+            }
+        }
+        int end = iterator.getCodeLength();
+        if(!canThrow(code, method, start, end)) {
+            return;
+        }
+
+        int handler = iterator.append(finalizeCheck);
+        iterator.append(new byte[] {(byte) Opcode.ATHROW});
+        ExceptionTable exceptions = code.getExceptionTable();
+        // last, the handlers of the body come first
+        exceptions.add(exceptions.size(), start, end, handler, 0);
+        code.setMaxStack(Math.max(code.getMaxStack(), 1));
+        if(classFile.getMajorVersion() >= ClassFile.JAVA_6) {
+            appendHandlerFrame(code, handler);
+        }
+    }
+
+    // the handler frame has no locals, any locals of the covered code are assignable to it
+    private void appendHandlerFrame(CodeAttribute code, int handler) throws BadBytecode {
+        if(throwableClass == 0) {
+            throwableClass = constPool.addClassInfo("java.lang.Throwable");
+        }
+        StackMapTable table = (StackMapTable) code.getAttribute(StackMapTable.tag);
+        int last = -1;
+        int entries = 0;
+        if(table != null) {
+            LastFrame walker = new LastFrame(table);
+            walker.parse();
+            last = walker.pc;
+            entries = walker.size();
+        }
+        StackMapTable.Writer writer = new StackMapTable.Writer(16);
+        writer.fullFrame(handler - last - 1, new int[0], new int[0],
+                new int[] {StackMapTable.OBJECT}, new int[] {throwableClass});
+        if(table == null) {
+            code.setAttribute(writer.toStackMapTable(constPool));
+            return;
+        }
+        byte[] frames = table.get();
+        byte[] frame = writer.toByteArray();
+        // both start with the number of entries
+        byte[] info = new byte[frames.length + frame.length - 2];
+        System.arraycopy(frames, 0, info, 0, frames.length);
+        System.arraycopy(frame, 2, info, frames.length, frame.length - 2);
+        info[0] = (byte) ((entries + 1) >> 8);
+        info[1] = (byte) (entries + 1);
+        table.set(info);
+    }
+
+    private static final class LastFrame extends StackMapTable.Walker {
+        int pc = -1;
+
+        LastFrame(StackMapTable table) {
+            super(table);
+        }
+
+        private void frame(int offsetDelta) {
+            pc += offsetDelta + 1;
+        }
+
+        @Override
+        public void sameFrame(int pos, int offsetDelta) {
+            frame(offsetDelta);
+        }
+
+        @Override
+        public void sameLocals(int pos, int offsetDelta, int stackTag, int stackData) {
+            frame(offsetDelta);
+        }
+
+        @Override
+        public void chopFrame(int pos, int offsetDelta, int k) {
+            frame(offsetDelta);
+        }
+
+        @Override
+        public void appendFrame(int pos, int offsetDelta, int[] tags, int[] data) {
+            frame(offsetDelta);
+        }
+
+        @Override
+        public void fullFrame(int pos, int offsetDelta, int[] localTags, int[] localData, int[] stackTags, int[] stackData) {
+            frame(offsetDelta);
+        }
+    }
+
+    /**
+     * Whether the code from start to end may throw, apart from errors of the virtual
+     * machine itself. Field accesses are taken as safe only on {@code this} in code
+     * without jumps, so that simple getters and setters get no handler.
+     */
+    private boolean canThrow(CodeAttribute code, MethodInfo method, int start, int end) throws BadBytecode {
+        if(code.getExceptionTable().size() > 0) {
+            return true;
+        }
+        boolean onThis = (method.getAccessFlags() & AccessFlag.STATIC) == 0;
+        CodeIterator iterator = code.iterator();
+        boolean jumps = false;
+        while(iterator.hasNext()) {
+            int op = iterator.byteAt(iterator.next());
+            if(op >= Opcode.IFEQ && op <= Opcode.LOOKUPSWITCH || op >= Opcode.IFNULL && op <= Opcode.JSR_W) {
+                jumps = true;
+                break;
+            }
+        }
+
+        int previous = -1;
+        int beforePrevious = -1;
+        iterator.move(start);
+        while(iterator.hasNext()) {
+            int at = iterator.next();
+            if(at >= end) {
+                break;
+            }
+            int op = iterator.byteAt(at);
+            switch(op) {
+                case Opcode.GETFIELD:
+                    if(jumps || !onThis || previous < 0 || iterator.byteAt(previous) != Opcode.ALOAD_0) {
+                        return true;
+                    }
+                    break;
+                case Opcode.PUTFIELD:
+                    if(jumps || !onThis || beforePrevious < 0 || iterator.byteAt(beforePrevious) != Opcode.ALOAD_0
+                            || !pushesValue(iterator, previous)) {
+                        return true;
+                    }
+                    break;
+                case Opcode.LDC:
+                case Opcode.LDC_W:
+                    if(!isPlainConstant(iterator, at)) {
+                        return true;
+                    }
+                    break;
+                case Opcode.INVOKESTATIC:
+                case Opcode.INVOKEDYNAMIC:
+                    // the exit probes inserted before the returns
+                    if(op != (finalizeCheck[0] & 0xff) || iterator.u16bitAt(at + 1) != finalizeRef) {
+                        return true;
+                    }
+                    break;
+                default:
+                    if(mayThrow(op)) {
+                        return true;
+                    }
+            }
+            beforePrevious = previous;
+            previous = at;
+        }
+        return false;
+    }
+
+    private boolean mayThrow(int op) {
+        if(op >= Opcode.IALOAD && op <= Opcode.SALOAD || op >= Opcode.IASTORE && op <= Opcode.SASTORE) {
+            return true;
+        }
+        switch(op) {
+            case Opcode.IDIV:
+            case Opcode.LDIV:
+            case Opcode.IREM:
+            case Opcode.LREM:
+            case Opcode.JSR:
+            case Opcode.JSR_W:
+                return true;
+            default:
+                return op >= Opcode.GETSTATIC && op <= Opcode.MULTIANEWARRAY;
+        }
+    }
+
+    // whether the instruction at the index pushes a value without taking any
+    private boolean pushesValue(CodeIterator iterator, int at) {
+        int op = iterator.byteAt(at);
+        if(op == Opcode.LDC || op == Opcode.LDC_W) {
+            return isPlainConstant(iterator, at);
+        }
+        return op >= Opcode.ACONST_NULL && op <= Opcode.LDC2_W || op >= Opcode.ILOAD && op <= Opcode.ALOAD_3;
+    }
+
+    // strings and numbers, classes and method handles may fail to resolve
+    private boolean isPlainConstant(CodeIterator iterator, int at) {
+        int index = iterator.byteAt(at) == Opcode.LDC ? iterator.byteAt(at + 1) : iterator.u16bitAt(at + 1);
+        int tag = constPool.getTag(index);
+        return tag == ConstPool.CONST_String || tag == ConstPool.CONST_Integer || tag == ConstPool.CONST_Float;
+    }
+}
@@ -0,0 +1,375 @@
+package org.example.agent;
+
+import org.example.AgentOptions;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Decides which classes and methods get probes.
+ *
+ * Rules come from agent arguments and from an optional rules file ({@code rules=<file>})
+ * holding one {@code directive value} per line, {@code #} starting a comment:
+ * <pre>
+ *   include  com.acme.widgets.*          probe matching classes even if they are no JComponent
+ *   exclude  com.myapp.ui.FastTable      never probe matching classes
+ *   skip     get*()*                     no probe in matching methods
+ *   probe    addNotify()V                normal probe, overrides thread-safe defaults
+ *   thread-safe  refresh()V              probe allowing nested calls from any thread
+ *   skip-annotation         com.myapp.NoEdtCheck
+ *   thread-safe-annotation  com.myapp.ThreadSafe
+ * </pre>
+ * Class patterns are exact names or prefixes ending with {@code *}; the longest match
+ * wins and an exact match beats a prefix. Method patterns are a name, optionally with
+ * any number of {@code *} anywhere in it, followed by an optional descriptor which is
+ * exact or a prefix ending with {@code *}. Annotation rules apply to methods and, for a
+ * whole class, to the class itself.
+ *
+ * With {@code analysis=true}, methods no rule or annotation decides on are classified by
+ * {@link MethodAnalysis}, and the options {@code analysis.getter}, {@code analysis.constant},
+ * {@code analysis.delegation} and {@code analysis.state} ({@code probe}, {@code thread-safe}
+ * or {@code skip}) give the probe of each kind. It is off by default: a getter reading
+ * mutable Swing state off the EDT is a violation too, and skipping it hides it.
+ *
+ * Class patterns are compiled into a trie walked over the internal class name, and
+ * method patterns into hashed name and descriptor sets, so matching builds no strings.
+ */
+public class ProbeRules {
+
+    public enum MethodProbe { CHECK, THREAD_SAFE, SKIP }
+
+    /** what a method does, as found by {@link MethodAnalysis} */
+    public enum MethodKind { GETTER, CONSTANT, DELEGATION, STATE, OTHER }
+
+    static final int NO_MATCH = 0;
+    static final int INCLUDE = 1;
+    static final int EXCLUDE = 2;
+
+    // thread-safe methods of JComponent
+    private static final String[] DEFAULT_THREAD_SAFE = {
+            "repaint()V",
+            "repaint(JIIII)V",
+            "repaint(Ljava/awt/Rectangle;)V",
+            "repaint(IIII)V",
+            "revalidate()V",
+            //"invalidate()V", /* removed by Alex's request */
+            "imageUpdate(Ljava/awt/Image;IIIII)Z",
+            "getListeners(Ljava/lang/Class;)[Ljava/util/EventListener;",
+            "add*Listener",
+            "remove*Listener",
+    };
+
+    private final ClassTrie classes = new ClassTrie();
+    private final MethodSet skipped = new MethodSet();
+    private final MethodSet probed = new MethodSet();
+    private final MethodSet threadSafe = new MethodSet();
+    private final List<String> skipAnnotations = new ArrayList<>();
+    private final List<String> threadSafeAnnotations = new ArrayList<>();
+
+    // every rule in the order given, describes the rules for the bytecode cache
+    private final List<String> description = new ArrayList<>();
+
+    // the rules deciding the probes inside a class, see methodRules()
+    private final List<String> methodDescription = new ArrayList<>();
+
+    // probes of the methods not matched by a rule, by their kind; null without analysis
+    private Map<MethodKind, MethodProbe> analysis;
+
+    /** compiles the rules given in the agent options and the rules file */
+    public static ProbeRules compile(AgentOptions options) throws IOException {
+        ProbeRules rules = new ProbeRules();
+        for(String file : options.getAll("rules")) {
+            int lineNumber = 0;
+            for(String line : Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8)) {
+                lineNumber++;
+                int comment = line.indexOf('#');
+                if(comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                line = line.trim();
+                if(line.isEmpty()) {
+                    continue;
+                }
+                String[] parts = line.split("[\\s=]+", 2);
+                if(parts.length != 2 || !rules.add(parts[0], parts[1].trim())) {
+                    throw new IOException(file + ":" + lineNumber + ": invalid rule: " + line);
+                }
+            }
+        }
+        for(String directive : new String[] {"include", "exclude", "skip", "probe", "thread-safe",
+                "skip-annotation", "thread-safe-annotation"}) {
+            for(String value : options.getAll(directive)) {
+                rules.add(directive, value);
+            }
+        }
+        if(options.getBoolean("default-rules", true)) {
+            for(String pattern : DEFAULT_THREAD_SAFE) {
+                rules.threadSafe.add(pattern);
+            }
+            rules.methodDescription.add("default-rules");
+        }
+        if(options.getBoolean("analysis", false)) {
+            rules.analysis = new EnumMap<>(MethodKind.class);
+            rules.analysis.put(MethodKind.GETTER, parsePolicy(options, "analysis.getter", "skip"));
+            rules.analysis.put(MethodKind.CONSTANT, parsePolicy(options, "analysis.constant", "skip"));
+            rules.analysis.put(MethodKind.DELEGATION, parsePolicy(options, "analysis.delegation", "skip"));
+            rules.analysis.put(MethodKind.STATE, parsePolicy(options, "analysis.state", "probe"));
+            String description = "analysis " + rules.analysis;
+            rules.description.add(description);
+            rules.methodDescription.add(description);
+        }
+        return rules;
+    }
+
+    private static MethodProbe parsePolicy(AgentOptions options, String key, String defaultValue) throws IOException {
+        String value = options.get(key, defaultValue);
+        switch(value) {
+            case "probe": return MethodProbe.CHECK;
+            case "thread-safe": return MethodProbe.THREAD_SAFE;
+            case "skip": return MethodProbe.SKIP;
+            default: throw new IOException("invalid " + key + ": " + value + ", expected probe, thread-safe or skip");
+        }
+    }
+
+    /** rules of an agent started without arguments */
+    static ProbeRules defaults() {
+        try {
+            return compile(AgentOptions.parse(null));
+        } catch(IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    boolean add(String directive, String value) {
+        switch(directive) {
+            case "include": classes.add(value, INCLUDE); break;
+            case "exclude": classes.add(value, EXCLUDE); break;
+            case "skip": skipped.add(value); break;
+            case "probe": probed.add(value); break;
+            case "thread-safe": threadSafe.add(value); break;
+            case "skip-annotation": skipAnnotations.add(value); break;
+            case "thread-safe-annotation": threadSafeAnnotations.add(value); break;
+            default: return false;
+        }
+        description.add(directive + ' ' + value);
+        if(!directive.equals("include") && !directive.equals("exclude")) {
+            methodDescription.add(directive + ' ' + value);
+        }
+        return true;
+    }
+
+    /**
+     * Matches the internal class name, like {@code javax/swing/JButton}, against
+     * include and exclude rules.
+     *
+     * @return {@link #INCLUDE}, {@link #EXCLUDE} or {@link #NO_MATCH}
+     */
+    int matchClass(String internalName) {
+        return classes.match(internalName);
+    }
+
+    boolean hasAnnotationRules() {
+        return !skipAnnotations.isEmpty() || !threadSafeAnnotations.isEmpty();
+    }
+
+    List<String> getSkipAnnotations() {
+        return skipAnnotations;
+    }
+
+    List<String> getThreadSafeAnnotations() {
+        return threadSafeAnnotations;
+    }
+
+    /** decides the probe of a method by its name and descriptor */
+    MethodProbe matchMethod(String name, String descriptor) {
+        MethodProbe probe = matchMethodRule(name, descriptor);
+        return probe == null ? MethodProbe.CHECK : probe;
+    }
+
+    /** @return the probe given by a method rule, or null if no rule matches */
+    MethodProbe matchMethodRule(String name, String descriptor) {
+        if(skipped.matches(name, descriptor)) {
+            return MethodProbe.SKIP;
+        }
+        if(probed.matches(name, descriptor)) {
+            return MethodProbe.CHECK;
+        }
+        if(threadSafe.matches(name, descriptor)) {
+            return MethodProbe.THREAD_SAFE;
+        }
+        return null;
+    }
+
+    boolean hasAnalysis() {
+        return analysis != null;
+    }
+
+    /** @return the probe of a method of the kind not matched by a rule */
+    MethodProbe analysisProbe(MethodKind kind) {
+        return kind == MethodKind.OTHER ? MethodProbe.CHECK : analysis.get(kind);
+    }
+
+    /** describes the rules deciding the probes of methods, equal for rules probing methods the same way */
+    String methodRules() {
+        return methodDescription.toString();
+    }
+
+    @Override
+    public String toString() {
+        return description.toString();
+    }
+
+    /**
+     * Trie of class patterns over internal names. A node keeps the decision for names
+     * equal to the path and the decision for names starting with it.
+     */
+    static final class ClassTrie {
+        private final Node root = new Node();
+
+        void add(String pattern, int decision) {
+            boolean prefix = pattern.endsWith("*");
+            String path = (prefix ? pattern.substring(0, pattern.length() - 1) : pattern).replace('.', '/');
+            Node node = root;
+            for(int i = 0; i < path.length(); i++) {
+                node = node.child(path.charAt(i), true);
+            }
+            if(prefix) {
+                node.prefixDecision = decision;
+            } else {
+                node.exactDecision = decision;
+            }
+        }
+
+        int match(String name) {
+            Node node = root;
+            int decision = root.prefixDecision;
+            for(int i = 0; i < name.length() && node != null; i++) {
+                node = node.child(name.charAt(i), false);
+                if(node != null && node.prefixDecision != NO_MATCH) {
+                    decision = node.prefixDecision;
+                }
+            }
+            if(node != null && node.exactDecision != NO_MATCH) {
+                decision = node.exactDecision;
+            }
+            return decision;
+        }
+
+        private static final class Node {
+            private char[] keys = new char[0];
+            private Node[] children = new Node[0];
+            int exactDecision;
+            int prefixDecision;
+
+            Node child(char c, boolean create) {
+                for(int i = 0; i < keys.length; i++) {
+                    if(keys[i] == c) {
+                        return children[i];
+                    }
+                }
+                if(!create) {
+                    return null;
+                }
+                Node node = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = c;
+                children[children.length - 1] = node;
+                return node;
+            }
+        }
+    }
+
+    /** method patterns: exact names hashed, wildcard names kept as the parts between the wildcards */
+    static final class MethodSet {
+        private final Map<String, Descriptors> exactNames = new HashMap<>();
+        private final List<String[]> wildcardNames = new ArrayList<>();
+        private final List<Descriptors> wildcardDescriptors = new ArrayList<>();
+
+        void add(String pattern) {
+            int paren = pattern.indexOf('(');
+            String name = paren < 0 ? pattern : pattern.substring(0, paren);
+            String descriptor = paren < 0 ? "*" : pattern.substring(paren);
+            Descriptors descriptors;
+            if(name.indexOf('*') < 0) {
+                descriptors = exactNames.computeIfAbsent(name, n -> new Descriptors());
+            } else {
+                descriptors = new Descriptors();
+                wildcardNames.add(name.split("\\*", -1));
+                wildcardDescriptors.add(descriptors);
+            }
+            descriptors.add(descriptor);
+        }
+
+        boolean matches(String name, String descriptor) {
+            Descriptors descriptors = exactNames.get(name);
+            if(descriptors != null && descriptors.matches(descriptor)) {
+                return true;
+            }
+            for(int i = 0; i < wildcardNames.size(); i++) {
+                if(matchesWildcards(name, wildcardNames.get(i)) && wildcardDescriptors.get(i).matches(descriptor)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // parts has a first and a last part around the wildcards, both possibly empty
+        private static boolean matchesWildcards(String name, String[] parts) {
+            String first = parts[0];
+            String last = parts[parts.length - 1];
+            if(name.length() < first.length() + last.length() || !name.startsWith(first) || !name.endsWith(last)) {
+                return false;
+            }
+            // the middle parts in order, each as early as possible
+            int from = first.length();
+            int end = name.length() - last.length();
+            for(int i = 1; i < parts.length - 1; i++) {
+                int at = name.indexOf(parts[i], from);
+                if(at < 0 || at + parts[i].length() > end) {
+                    return false;
+                }
+                from = at + parts[i].length();
+            }
+            return true;
+        }
+    }
+
+    static final class Descriptors {
+        private boolean any;
+        private final Set<String> exact = new HashSet<>();
+        private final List<String> prefixes = new ArrayList<>();
+
+        void add(String descriptor) {
+            if(descriptor.equals("*")) {
+                any = true;
+            } else if(descriptor.endsWith("*")) {
+                prefixes.add(descriptor.substring(0, descriptor.length() - 1));
+            } else {
+                exact.add(descriptor);
+            }
+        }
+
+        boolean matches(String descriptor) {
+            if(any || exact.contains(descriptor)) {
+                return true;
+            }
+            for(String prefix : prefixes) {
+                if(descriptor.startsWith(prefix)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
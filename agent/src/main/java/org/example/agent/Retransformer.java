@@ -0,0 +1,145 @@
+package org.example.agent;
+
+import org.example.AgentLog;
+import org.example.AgentOptions;
+
+import java.lang.instrument.Instrumentation;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.example.AgentLog.Category.AGENT;
+
+/**
+ * Retransforms classes loaded before the agent was attached, and restores them when it
+ * is detached.
+ *
+ * Classes go in batches of {@code attach.batchSize} (default 50) with a pause of
+ * {@code attach.pause} milliseconds (default 20) between them, so the application and
+ * its UI keep running while a large class set is processed. Work runs on one daemon
+ * thread, so a detach waits for an attach still in progress.
+ */
+class Retransformer {
+
+    private static final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "SwingAgent retransformer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static int batchSize = 50;
+    private static long pauseMillis = 20;
+
+    static void configure(AgentOptions options) {
+        batchSize = Math.max(1, options.getInt("attach.batchSize", batchSize));
+        pauseMillis = Math.max(0, options.getInt("attach.pause", (int) pauseMillis));
+    }
+
+    /**
+     * Retransforms classes in the background.
+     *
+     * @param classes determines the classes on the worker thread
+     * @param action what the retransformation does, for the progress reports
+     * @param done run when all batches are through, may be null
+     */
+    static void submit(Instrumentation instrumentation, Supplier<List<Class<?>>> classes, String action, Runnable done) {
+        worker.execute(() -> {
+            retransform(instrumentation, classes.get(), action);
+            if(done != null) {
+                done.run();
+            }
+        });
+    }
+
+    /** Container and EventQueue first, then the JComponent subclasses and included classes */
+    static List<Class<?>> candidates(Instrumentation instrumentation, ProbeRules rules) {
+        List<Class<?>> awt = new ArrayList<>();
+        List<Class<?>> components = new ArrayList<>();
+        for(Class<?> c : instrumentation.getAllLoadedClasses()) {
+            if(!isTransformable(instrumentation, c)) {
+                continue;
+            }
+            String name = c.getName();
+            if(name.equals("java.awt.Container") || name.equals("java.awt.EventQueue")) {
+                awt.add(c);
+            } else if(isProbed(rules, c)) {
+                components.add(c);
+            }
+        }
+        awt.addAll(components);
+        return awt;
+    }
+
+    static boolean isTransformable(Instrumentation instrumentation, Class<?> c) {
+        return !c.isArray() && !c.isPrimitive() && !c.isInterface() && instrumentation.isModifiableClass(c);
+    }
+
+    /** whether the rules give the class EDT probes, the same decision as the transformer takes */
+    static boolean isProbed(ProbeRules rules, Class<?> c) {
+        String name = c.getName();
+        if(ClassFileFilter.isAgentClass(c.getClassLoader(), name.replace('.', '/'))
+                || name.startsWith("javassist.") || name.startsWith("java.")) {
+            return false;
+        }
+        int decision = rules.matchClass(name.replace('.', '/'));
+        return decision == ProbeRules.INCLUDE || decision != ProbeRules.EXCLUDE && extendsJComponent(c);
+    }
+
+    private static boolean extendsJComponent(Class<?> c) {
+        for(Class<?> current = c; current != null; current = current.getSuperclass()) {
+            if(HierarchyIndex.JCOMPONENT.equals(current.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static void retransform(Instrumentation instrumentation, List<Class<?>> classes, String action) {
+        long start = System.nanoTime();
+        int done = 0;
+        int failed = 0;
+        for(int from = 0; from < classes.size(); from += batchSize) {
+            List<Class<?>> batch = classes.subList(from, Math.min(classes.size(), from + batchSize));
+            long batchStart = System.nanoTime();
+            try {
+                instrumentation.retransformClasses(batch.toArray(new Class<?>[0]));
+            } catch(Throwable ex) {
+                // one bad class fails the whole batch, so the batch is retried class by class
+                failed += retransformEach(instrumentation, batch);
+            }
+            done += batch.size();
+            if(AgentLog.isEnabled(AGENT, AgentLog.INFO)) {
+                AgentLog.info(AGENT, String.format("%s: %d/%d classes, batch took %d ms",
+                        action, done, classes.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batchStart)));
+            }
+            if(pauseMillis > 0 && done < classes.size()) {
+                try {
+                    Thread.sleep(pauseMillis);
+                } catch(InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+        if(AgentLog.isEnabled(AGENT, AgentLog.INFO)) {
+            AgentLog.info(AGENT, String.format("%s finished: %d classes, %d failed, in %d ms",
+                    action, classes.size(), failed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        }
+    }
+
+    private static int retransformEach(Instrumentation instrumentation, List<Class<?>> batch) {
+        int failed = 0;
+        for(Class<?> c : batch) {
+            try {
+                instrumentation.retransformClasses(c);
+            } catch(Throwable ex) {
+                failed++;
+                AgentLog.error(AGENT, "Cannot retransform %s: %s", c.getName(), ex, null);
+            }
+        }
+        return failed;
+    }
+}
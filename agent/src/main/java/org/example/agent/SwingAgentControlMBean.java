@@ -0,0 +1,44 @@
+package org.example.agent;
+
+/**
+ * Changes the instrumentation of a running application, registered as
+ * {@code org.example:type=SwingAgent} with the agent option {@code control.jmx}.
+ *
+ * Every change retransforms only the classes whose probes it adds or removes, except
+ * switching the probes, which relinks them.
+ */
+public interface SwingAgentControlMBean {
+
+    /** whether JComponent methods get EDT probes */
+    boolean isEdtChecks();
+
+    void setEdtChecks(boolean enabled);
+
+    /** whether {@code Container.addImpl} is probed, which feeds addImpl traces and component hooks */
+    boolean isAddImpl();
+
+    void setAddImpl(boolean enabled);
+
+    /** whether the EDT probes run, switching them relinks the probes of {@code linkage=indy} to a no-op */
+    boolean isProbesEnabled();
+
+    void setProbesEnabled(boolean enabled);
+
+    /** the probe rules in effect */
+    String getRules();
+
+    /** probes classes matching the pattern even if they are no JComponent */
+    void includeClass(String pattern);
+
+    /** removes the probes from classes matching the pattern */
+    void excludeClass(String pattern);
+
+    /** adds a rule, with a directive of a rules file like {@code skip} or {@code thread-safe} */
+    void addRule(String directive, String value);
+
+    /** removes the rules added through JMX */
+    void clearRules();
+
+    /** reads the control file again */
+    void reload();
+}
@@ -0,0 +1,179 @@
+package org.example.agent;
+
+import org.example.AgentOptions;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent transforming classes, which adds to the class loading of the application
+ * and so to its time to the first frame.
+ *
+ * With {@code timeline} every class passing the transformer is timed: all of them go
+ * into a log2 latency histogram, and the classes which got past the class file filter
+ * are recorded with the time of each phase (parse, hierarchy check, probe insertion,
+ * {@code toBytecode}), the number of probed methods, and the cause of any failure.
+ *
+ * The report lists the histogram, the {@code timeline.top} (default 20) slowest classes
+ * and the failures. It is printed at exit, at {@code timeline.dumpAt} seconds of uptime,
+ * and on demand through {@link org.example.SwingAgent#getTransformReport()} or the metrics MXBean.
+ * At most {@code timeline.maxClasses} (default 10000) classes are recorded.
+ */
+class TransformTimeline {
+
+    static volatile boolean enabled;
+
+    private static int top = 20;
+    private static int maxClasses = 10000;
+
+    // bucket i counts transformations taking [2^(i-1), 2^i) nanoseconds
+    private static final AtomicLongArray histogram = new AtomicLongArray(64);
+    private static final LongAdder seen = new LongAdder();
+    private static final LongAdder seenNanos = new LongAdder();
+
+    private static final ConcurrentLinkedQueue<Record> records = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger recordCount = new AtomicInteger();
+    private static final LongAdder notRecorded = new LongAdder();
+
+    static void configure(AgentOptions options) {
+        enabled = options.getBoolean("timeline", false);
+        if(!enabled) {
+            return;
+        }
+        // loaded before the transformer is added, which would otherwise transform it from within itself
+        new Record(Record.class.getName());
+        top = Math.max(1, options.getInt("timeline.top", top));
+        maxClasses = Math.max(0, options.getInt("timeline.maxClasses", maxClasses));
+        Runtime.getRuntime().addShutdownHook(new Thread(
+                () -> System.out.printf("[SwingAgent] %s", report()), "SwingAgent transform timeline"));
+        int dumpAt = options.getInt("timeline.dumpAt", 0);
+        if(dumpAt > 0) {
+            Thread dump = new Thread(() -> {
+                long wait = TimeUnit.SECONDS.toMillis(dumpAt) - ManagementFactory.getRuntimeMXBean().getUptime();
+                try {
+                    if(wait > 0) {
+                        Thread.sleep(wait);
+                    }
+                } catch(InterruptedException ex) {
+                    return;
+                }
+                System.out.printf("[SwingAgent] %s", report());
+            }, "SwingAgent transform timeline dump");
+            dump.setDaemon(true);
+            dump.start();
+        }
+    }
+
+    /** times one transformation, filled in by the transformer and the instrumenter */
+    static final class Record {
+        final String className;
+        final long start = System.nanoTime();
+        long totalNanos;
+        long parseNanos;
+        long hierarchyNanos;
+        long insertNanos;
+        long bytecodeNanos;
+        int methods;
+        // set once the class got past the class file filter
+        boolean examined;
+        String outcome = "unchanged";
+        List<String> failures;
+
+        Record(String className) {
+            this.className = className;
+        }
+
+        void failed(String where, Throwable cause) {
+            if(failures == null) {
+                failures = new ArrayList<>(2);
+            }
+            failures.add(where + ": " + cause);
+        }
+    }
+
+    static void finish(Record record, byte[] result) {
+        long nanos = System.nanoTime() - record.start;
+        record.totalNanos = nanos;
+        histogram.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+        seen.increment();
+        seenNanos.add(nanos);
+        if(!record.examined) {
+            return;
+        }
+        if(result != null && record.outcome.equals("unchanged")) {
+            record.outcome = "instrumented";
+        }
+        if(recordCount.incrementAndGet() <= maxClasses) {
+            records.add(record);
+        } else {
+            notRecorded.increment();
+        }
+    }
+
+    static String report() {
+        StringBuilder out = new StringBuilder();
+        List<Record> examined = new ArrayList<>(records);
+        long examinedNanos = 0;
+        for(Record record : examined) {
+            examinedNanos += record.totalNanos;
+        }
+        out.append(String.format("transform timeline: %d classes in %.1f ms, %d examined in %.1f ms%s%n",
+                seen.sum(), seenNanos.sum() / 1e6, examined.size(), examinedNanos / 1e6,
+                notRecorded.sum() > 0 ? ", " + notRecorded.sum() + " more not recorded" : ""));
+
+        out.append("  latency of all classes:").append(System.lineSeparator());
+        for(int i = 0; i < histogram.length(); i++) {
+            long count = histogram.get(i);
+            if(count > 0) {
+                out.append(String.format("    %-18s %8d%n", bucketLabel(i), count));
+            }
+        }
+
+        examined.sort(Comparator.comparingLong((Record r) -> r.totalNanos).reversed());
+        out.append(String.format("  slowest classes (ms):%n    %8s %8s %9s %8s %8s %7s  %-12s %s%n",
+                "total", "parse", "hierarchy", "insert", "bytecode", "methods", "outcome", "class"));
+        for(Record r : examined.subList(0, Math.min(top, examined.size()))) {
+            out.append(String.format("    %8.3f %8.3f %9.3f %8.3f %8.3f %7d  %-12s %s%n",
+                    r.totalNanos / 1e6, r.parseNanos / 1e6, r.hierarchyNanos / 1e6, r.insertNanos / 1e6,
+                    r.bytecodeNanos / 1e6, r.methods, r.outcome, r.className));
+        }
+
+        boolean header = false;
+        for(Record r : examined) {
+            if(r.failures == null) {
+                continue;
+            }
+            if(!header) {
+                out.append("  failures:").append(System.lineSeparator());
+                header = true;
+            }
+            for(String failure : r.failures) {
+                out.append("    ").append(r.className).append(' ').append(failure).append(System.lineSeparator());
+            }
+        }
+        return out.toString();
+    }
+
+    private static String bucketLabel(int bucket) {
+        if(bucket == 0) {
+            return "0 ns";
+        }
+        return formatNanos(1L << (bucket - 1)) + " - " + formatNanos(1L << bucket);
+    }
+
+    private static String formatNanos(long nanos) {
+        if(nanos < 1000) {
+            return nanos + " ns";
+        } else if(nanos < 1000_000) {
+            return nanos / 1000 + " us";
+        }
+        return nanos / 1000_000 + " ms";
+    }
+}
@@ -0,0 +1,14 @@
+package org.example;
+
+/** Reads the probe state of the calling thread for tests outside the runtime package. */
+public class ThreadMarks {
+
+    /** nesting depth of the probed calls the thread is in */
+    public static int depth() {
+        return SwingAgent.threadMarks.get().depth;
+    }
+
+    public static long estimatedViolations() {
+        return SwingAgent.getEstimatedViolationCount();
+    }
+}
@@ -0,0 +1,21 @@
+package org.example.agent;
+
+import javax.swing.JComponent;
+
+/** A component built by {@link ThreadChurnTest}, its constructors call each other and a method of its own. */
+public class ChurnComponent extends JComponent {
+
+    private String label;
+
+    public ChurnComponent() {
+        this("churn");
+    }
+
+    public ChurnComponent(String label) {
+        update(label);
+    }
+
+    void update(String label) {
+        this.label = label;
+    }
+}
@@ -0,0 +1,124 @@
+package org.example.agent;
+
+import org.example.ThreadMarks;
+import org.junit.jupiter.api.Test;
+
+import javax.swing.JComponent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Builds an instrumented component from a million short-lived threads, 256 at a time.
+ * Each thread builds it twice: the constructor probes have to leave the thread's mark
+ * balanced, so that the second violation is reported as well, and no mark may outlive
+ * its thread, so the heap stays within 16 MB of what it was after the first batch.
+ */
+class ThreadChurnTest {
+
+    private static final String NAME = ChurnComponent.class.getName();
+    private static final int THREADS = 1_000_000;
+    private static final int BATCH = 100_000;
+    private static final int RUNNING = 256;
+    private static final long MAX_GROWTH = 16 << 20;
+
+    @Test
+    void marksStayBalancedAndBounded() throws Throwable {
+        MethodHandle constructor = instrumentedConstructor();
+        AtomicInteger unbalanced = new AtomicInteger();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable task = () -> {
+            try {
+                for(int i = 0; i < 2; i++) {
+                    JComponent component = (JComponent) constructor.invokeExact();
+                    if(component == null || ThreadMarks.depth() != 0) {
+                        unbalanced.incrementAndGet();
+                    }
+                }
+            } catch(Throwable ex) {
+                failure.compareAndSet(null, ex);
+            }
+        };
+
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long violations = ThreadMarks.estimatedViolations();
+        Thread[] running = new Thread[RUNNING];
+        long baseline = -1;
+        for(int i = 0; i < THREADS; i++) {
+            int slot = i % RUNNING;
+            if(running[slot] != null) {
+                running[slot].join();
+            }
+            running[slot] = new Thread(task);
+            running[slot].start();
+            if((i + 1) % BATCH == 0) {
+                for(Thread thread : running) {
+                    thread.join();
+                }
+                System.gc();
+                long used = memory.getHeapMemoryUsage().getUsed();
+                if(baseline < 0) {
+                    baseline = used;
+                }
+                assertTrue(used - baseline < MAX_GROWTH, String.format(
+                        "heap grew by %d KB after %d threads", (used - baseline) >> 10, i + 1));
+            }
+        }
+
+        assertNull(failure.get());
+        assertEquals(0, unbalanced.get(), "threads left with an unbalanced mark");
+        // the outermost probe of each construction reports, the nested ones do not
+        assertEquals(2L * THREADS, ThreadMarks.estimatedViolations() - violations);
+    }
+
+    // the component instrumented as the agent does it, defined by a loader of its own
+    private static MethodHandle instrumentedConstructor() throws Throwable {
+        ClassLoader parent = ThreadChurnTest.class.getClassLoader();
+        byte[] bytes;
+        try(InputStream in = parent.getResourceAsStream(NAME.replace('.', '/') + ".class")) {
+            if(in == null) {
+                throw new IOException("No class file for " + NAME);
+            }
+            bytes = in.readAllBytes();
+        }
+        byte[] instrumented = new ClassInstrumenter(ProbeRules.defaults()).instrument(parent, NAME, bytes, Boolean.TRUE, null);
+        assertTrue(instrumented != null, NAME + " is not instrumented");
+        Class<?> type = new ComponentLoader(parent, instrumented).loadClass(NAME);
+        return MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(JComponent.class));
+    }
+
+    // defines the component itself instead of asking the parent
+    private static final class ComponentLoader extends ClassLoader {
+        private final byte[] bytes;
+
+        ComponentLoader(ClassLoader parent, byte[] bytes) {
+            super(parent);
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(!name.equals(NAME)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized(getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if(c == null) {
+                    c = defineClass(name, bytes, 0, bytes.length);
+                }
+                return c;
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.JButton;
+import javax.swing.JComponent;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per added component of the hook spliced into {@code Container.addImpl}: the
+ * component hooks and, with {@code addImpl.traces}, the stack trace of the addition.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class AddImplBenchmark {
+
+    // cycled, the traces table keeps a steady size
+    private static final int COMPONENTS = 1024;
+
+    @Param({"false", "true"})
+    public boolean traces;
+
+    private JComponent[] components;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        AddImplTraces.configure(AgentOptions.parse("addImpl.traces=" + traces));
+        components = new JComponent[COMPONENTS];
+        for(int i = 0; i < components.length; i++) {
+            components[i] = new JButton("button " + i);
+        }
+    }
+
+    @Benchmark
+    public void addImpl() {
+        SwingAgent.processContainer_addImpl(components[next++ & (COMPONENTS - 1)]);
+    }
+}
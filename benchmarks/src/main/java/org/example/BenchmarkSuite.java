@@ -0,0 +1,102 @@
+package org.example;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Runs all benchmarks into one JSON result file, the probes off the EDT with each
+ * thread count:
+ * <pre>
+ *   java -cp benchmarks-jar-with-dependencies.jar org.example.BenchmarkSuite
+ *        [--threads 1,2,4,8,16,32,64] [--quick] [--out results.json] [regex]
+ * </pre>
+ * {@code offEdtNested} and {@code offEdtViolation} run with n threads, the
+ * {@code contended} group with one dispatch thread and n - 1 background threads. The
+ * regex selects benchmarks like the JMH command line does. {@code --quick} runs one short
+ * warmup and measurement, enough to see that everything runs. The JSON is that of
+ * {@code -rf json}, with the thread count of each run in its {@code threads} field, so
+ * results of two commits can be compared with any JMH result viewer or a script.
+ */
+public class BenchmarkSuite {
+
+    private static final String SCALED = ProbeBenchmark.class.getName() + ".offEdt";
+    private static final String CONTENDED = ProbeBenchmark.class.getName() + ".contended";
+
+    public static void main(String[] args) throws RunnerException, FileNotFoundException {
+        int[] threads = {1, 2, 4, 8, 16, 32, 64};
+        boolean quick = false;
+        String out = "benchmarks.json";
+        String include = ".*";
+        for(int i = 0; i < args.length; i++) {
+            switch(args[i]) {
+                case "--threads": threads = parseThreads(args[++i]); break;
+                case "--quick": quick = true; break;
+                case "--out": out = args[++i]; break;
+                default: include = args[i];
+            }
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        // the scaled benchmarks are run below, one run per thread count
+        results.addAll(run(options(include, quick)
+                .exclude(Pattern.quote(SCALED)).exclude(Pattern.quote(CONTENDED))));
+        for(int n : threads) {
+            results.addAll(run(options(both(include, SCALED), quick).threads(n)));
+            if(n > 1) {
+                results.addAll(run(options(both(include, CONTENDED), quick).threadGroups(1, n - 1)));
+            }
+        }
+
+        try(PrintStream stream = new PrintStream(out)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, stream).writeOut(results);
+        }
+        System.out.printf("%d results written to %s%n", results.size(), out);
+    }
+
+    private static ChainedOptionsBuilder options(String include, boolean quick) {
+        ChainedOptionsBuilder options = new OptionsBuilder().include(include);
+        if(quick) {
+            options.warmupIterations(1).warmupTime(TimeValue.milliseconds(200))
+                    .measurementIterations(1).measurementTime(TimeValue.milliseconds(200));
+        }
+        return options;
+    }
+
+    // benchmarks matched by the regex and named by the prefix, JMH runs those matching any include
+    private static String both(String include, String prefix) {
+        return "^(?=.*(?:" + include + "))" + Pattern.quote(prefix);
+    }
+
+    // a run matching nothing is not an error here
+    private static List<RunResult> run(ChainedOptionsBuilder options) throws RunnerException {
+        try {
+            return new ArrayList<>(new Runner(options.build()).run());
+        } catch(RunnerException ex) {
+            if(ex.getMessage() != null && ex.getMessage().contains("No matching benchmarks")) {
+                return new ArrayList<>();
+            }
+            throw ex;
+        }
+    }
+
+    private static int[] parseThreads(String list) {
+        String[] parts = list.split(",");
+        int[] threads = new int[parts.length];
+        for(int i = 0; i < parts.length; i++) {
+            threads[i] = Integer.parseInt(parts[i].trim());
+        }
+        return threads;
+    }
+}
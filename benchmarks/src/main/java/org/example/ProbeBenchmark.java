@@ -0,0 +1,101 @@
+package org.example;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of a probed call, {@code checkEDT} on entry and {@code finalizeCheckEDT} on exit.
+ *
+ * The dispatch thread is set by hand, as the EventQueue hooks would: {@code onEdt} runs on
+ * it, {@code offEdtNested} off it inside an already reported call (the common case of a
+ * violating method calling further Swing methods), {@code offEdtViolation} off it at the
+ * outermost call, a violation each time, only counted once its call site was reported. The
+ * {@code contended} group runs one dispatch thread against background threads probing off
+ * it; {@link BenchmarkSuite} runs the off EDT benchmarks and the group with 1 to 64 threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ProbeBenchmark {
+
+    /** makes no benchmark thread the dispatch thread, unless it declares itself one */
+    @State(Scope.Benchmark)
+    public static class Dispatch {
+        @Setup(Level.Trial)
+        public void setUp() {
+            DispatchThreadCache.dispatchThreadChanged(new Thread("SwingAgent benchmark EDT"));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Edt {
+        @Setup(Level.Trial)
+        public void setUp(Dispatch dispatch) {
+            DispatchThreadCache.dispatchThreadChanged(Thread.currentThread());
+        }
+    }
+
+    /** a background thread inside a violating call, its later probes are nested */
+    @State(Scope.Thread)
+    public static class Nested {
+        @Setup(Level.Trial)
+        public void setUp(Dispatch dispatch) {
+            SwingAgent.checkEDT();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            SwingAgent.finalizeCheckEDT();
+        }
+    }
+
+    @Benchmark
+    public void onEdt(Edt edt) {
+        SwingAgent.checkEDT();
+        SwingAgent.finalizeCheckEDT();
+    }
+
+    @Benchmark
+    public void offEdtNested(Nested nested) {
+        SwingAgent.checkEDT();
+        SwingAgent.finalizeCheckEDT();
+    }
+
+    @Benchmark
+    public void offEdtViolation(Dispatch dispatch) {
+        SwingAgent.checkEDT();
+        SwingAgent.finalizeCheckEDT();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void contendedEdt(Edt edt) {
+        SwingAgent.checkEDT();
+        SwingAgent.finalizeCheckEDT();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void contendedBackground(Nested nested) {
+        SwingAgent.checkEDT();
+        SwingAgent.finalizeCheckEDT();
+    }
+}
@@ -0,0 +1,26 @@
+package org.example.agent;
+
+import javax.swing.JComponent;
+import java.util.function.IntUnaryOperator;
+
+/** A small component of the usual shape, loaded plain and instrumented by {@link ComponentBenchmark}. */
+public class BenchComponent extends JComponent implements IntUnaryOperator {
+
+    private int value;
+
+    public int getValue() {
+        return value;
+    }
+
+    public void setValue(int value) {
+        int old = this.value;
+        this.value = value;
+        firePropertyChange("value", old, value);
+    }
+
+    @Override
+    public int applyAsInt(int operand) {
+        setValue(getValue() + operand);
+        return getValue();
+    }
+}
@@ -0,0 +1,104 @@
+package org.example.agent;
+
+import org.example.DispatchThreadCache;
+import org.example.ProbeLinker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.swing.JComponent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Construction and method calls of {@link BenchComponent} on the dispatch thread, with
+ * the class as compiled ({@code plain}) and instrumented with probes linked statically
+ * ({@code static}) or through {@code invokedynamic} ({@code indy}). Each variant is
+ * defined by its own class loader from the same class file; the Swing superclasses are
+ * not instrumented, so the difference is the cost of the probes of the component itself.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ComponentBenchmark {
+
+    private static final String NAME = BenchComponent.class.getName();
+
+    @Param({"plain", "static", "indy"})
+    public String linkage;
+
+    private MethodHandle constructor;
+    private IntUnaryOperator component;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        DispatchThreadCache.dispatchThreadChanged(Thread.currentThread());
+        ClassLoader parent = ComponentBenchmark.class.getClassLoader();
+        byte[] bytes;
+        try(InputStream in = parent.getResourceAsStream(NAME.replace('.', '/') + ".class")) {
+            if(in == null) {
+                throw new IOException("No class file for " + NAME);
+            }
+            bytes = in.readAllBytes();
+        }
+        if(!linkage.equals("plain")) {
+            ProbeLinker.invokedynamic = linkage.equals("indy");
+            bytes = new ClassInstrumenter(ProbeRules.defaults()).instrument(parent, NAME, bytes, Boolean.TRUE, null);
+        }
+        Class<?> type = new ComponentLoader(parent, bytes).loadClass(NAME);
+        constructor = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class))
+                .asType(MethodType.methodType(JComponent.class));
+        component = (IntUnaryOperator) construct();
+    }
+
+    @Benchmark
+    public JComponent construct() throws Throwable {
+        return (JComponent) constructor.invokeExact();
+    }
+
+    @Benchmark
+    public int call() {
+        return component.applyAsInt(1);
+    }
+
+    // defines the component itself instead of asking the parent
+    private static final class ComponentLoader extends ClassLoader {
+        private final byte[] bytes;
+
+        ComponentLoader(ClassLoader parent, byte[] bytes) {
+            super(parent);
+            this.bytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if(!name.equals(NAME)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized(getClassLoadingLock(name)) {
+                Class<?> c = findLoadedClass(name);
+                if(c == null) {
+                    c = defineClass(name, bytes, 0, bytes.length);
+                }
+                return c;
+            }
+        }
+    }
+}
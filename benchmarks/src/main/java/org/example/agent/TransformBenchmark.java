@@ -0,0 +1,69 @@
+package org.example.agent;
+
+import org.example.AgentOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.IllegalClassFormatException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Classes transformed per second by the agent transformer, for Swing classes of
+ * different sizes, with and without the method analysis. Nothing is cached, every
+ * transformation parses and instruments the class again.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class TransformBenchmark {
+
+    @Param({"javax.swing.JComponent", "javax.swing.JButton", "javax.swing.JTable", "javax.swing.JTree"})
+    public String className;
+
+    @Param({"true", "false"})
+    public boolean analysis;
+
+    private AgentMain.Transformer transformer;
+    private String internalName;
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        AgentMain.rules = ProbeRules.compile(AgentOptions.parse("analysis=" + analysis));
+        transformer = new AgentMain.Transformer();
+        internalName = className.replace('.', '/');
+        try(InputStream in = ClassLoader.getSystemResourceAsStream(internalName + ".class")) {
+            if(in == null) {
+                throw new IOException("No class file for " + className);
+            }
+            bytes = in.readAllBytes();
+        }
+        if(transform() == null) {
+            throw new IllegalStateException(className + " is not instrumented");
+        }
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        try {
+            return transformer.transform(null, internalName, null, null, bytes);
+        } catch(IllegalClassFormatException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -1,2 +1,2 @@
 mvn install
-java -Xbootclasspath/a:./agent/target/agent-1.0-SNAPSHOT-jar-with-dependencies.jar -javaagent:./agent/target/agent-1.0-SNAPSHOT-jar-with-dependencies.jar -jar ./application/target/application-1.0-SNAPSHOT-jar-with-dependencies.jar
\ No newline at end of file
+java -javaagent:./agent/target/agent-1.0-SNAPSHOT-jar-with-dependencies.jar=hooks.buttonLog -jar ./application/target/application-1.0-SNAPSHOT-jar-with-dependencies.jar
\ No newline at end of file